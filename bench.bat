@@ -0,0 +1,3 @@
+"C:\Program Files\Java\jdk1.8.0_281\bin\javac.exe" -encoding UTF-8 -cp .\src;.\lib\jrxtx-1.0.1.jar;.\lib\jmh-core-1.37.jar;.\lib\jmh-generator-annprocess-1.37.jar;.\lib\jopt-simple-5.0.4.jar;.\lib\commons-math3-3.6.1.jar -d .\bench-bin .\src\mfc\io\*.java .\src\mfc\sim\*.java .\src\mfc\model\*.java .\bench\mfc\model\*.java
+"C:\Program Files\Java\jdk1.8.0_281\bin\java.exe" -cp .\bench-bin;.\lib\jrxtx-1.0.1.jar;.\lib\jmh-core-1.37.jar;.\lib\jmh-generator-annprocess-1.37.jar;.\lib\jopt-simple-5.0.4.jar;.\lib\commons-math3-3.6.1.jar org.openjdk.jmh.Main %*
+pause
\ No newline at end of file
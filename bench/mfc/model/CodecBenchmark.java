@@ -0,0 +1,114 @@
+package mfc.model;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mfc.io.Transport;
+import mfc.sim.SimulatedMFC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Затраты на кодирование и декодирование кадров протокола "Элточприбор-10М"
+ * без обмена данными с РРГ
+ *
+ * @author Лейбо Д.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    
+    private MFC mfc;
+    
+    private byte[] command;
+    
+    private byte[] flowResponse;
+    
+    private byte[] statusResponse;
+    
+    @Setup
+    public void setup() throws IOException {
+        
+        SimulatedMFC simulator;
+        Transport transport;
+        
+        simulator = new SimulatedMFC(1234, 0);
+        simulator.setResponseDelay(0);
+        simulator.setBaudRate(0);
+        transport = simulator.connect();
+        transport.open();
+        this.mfc = new MFC(transport);
+        
+        this.command = FrameCodec.GET_FLOW_FRAME.clone();
+        // flow -12.34 %, set flow 45.67 %
+        this.flowResponse = new byte[] {0x11, 0x00, (byte) 0x84, (byte) 0xD2, 0x11,
+            (byte) 0xD7, 0x00, 0x01, 0x02, 0x50};
+        this.statusResponse = new byte[] {0x01, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01,
+            0x00, 0x0A};
+            
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        
+        this.mfc.close();
+        
+    }
+    
+    @Benchmark
+    public byte[] calculateCheckSum() {
+        
+        FrameCodec.putCheckSum(this.command, 0);
+        
+        return this.command;
+        
+    }
+    
+    @Benchmark
+    public boolean checkCheckSum() {
+        
+        return FrameCodec.checkSumIsOK(this.flowResponse, 0);
+        
+    }
+    
+    @Benchmark
+    public double decodeFlow() {
+        
+        return this.mfc.decodeFlow(this.flowResponse, 0);
+        
+    }
+    
+    @Benchmark
+    public double decodeSetFlow() {
+        
+        return this.mfc.decodeSetFlow(this.flowResponse, 0);
+        
+    }
+    
+    @Benchmark
+    public String getMFCValveStatus() {
+        
+        return this.mfc.getMFCValveStatus(this.statusResponse, 0);
+        
+    }
+    
+    @Benchmark
+    public byte[] getNewFlowCommand() {
+        
+        return this.mfc.getNewFlowCommand(4567);
+        
+    }
+    
+}
\ No newline at end of file
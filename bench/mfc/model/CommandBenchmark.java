@@ -0,0 +1,101 @@
+package mfc.model;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mfc.io.Transport;
+import mfc.sim.SimulatedMFC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Полный цикл команд РРГ с программной моделью регулятора. При нулевой
+ * задержке модели измеряются затраты самой программы; при ненулевой задержке
+ * и скорости линии - ожидаемое время обмена с реальным РРГ
+ *
+ * @author Лейбо Д.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandBenchmark {
+    
+    /**
+     * Время обработки команды моделью РРГ, мкс
+     */
+    @Param({"0", "2000"})
+    public long responseDelay;
+    
+    /**
+     * Скорость линии, 0 - время передачи не учитывается
+     */
+    @Param({"0", "19200"})
+    public int baudRate;
+    
+    private MFC mfc;
+    
+    private double flow;
+    
+    @Setup
+    public void setup() throws IOException {
+        
+        SimulatedMFC simulator;
+        Transport transport;
+        
+        simulator = new SimulatedMFC(1234, 0);
+        simulator.setResponseDelay(this.responseDelay);
+        simulator.setBaudRate(this.baudRate);
+        simulator.setTimeConstant(0);
+        transport = simulator.connect();
+        transport.open();
+        this.mfc = new MFC(transport);
+        if (!this.mfc.setValveInControlMode()) {
+            throw new IOException("Simulated MFC is not in control mode");
+        }
+        this.flow = 10.0;
+        
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        
+        this.mfc.close();
+        
+    }
+    
+    @Benchmark
+    public double getFlowFromMFC() throws IOException {
+        
+        return this.mfc.getFlowFromMFC();
+        
+    }
+    
+    @Benchmark
+    public boolean setMFCNewFlow() throws IOException {
+        
+        this.flow = this.flow < 90.0 ? this.flow + 1.0 : 10.0;
+        
+        return this.mfc.setMFCNewFlow(this.flow);
+        
+    }
+    
+    @Benchmark
+    public boolean setValveInControlMode() throws IOException {
+        
+        return this.mfc.setValveInControlMode();
+        
+    }
+    
+}
\ No newline at end of file
@@ -1,4 +1,7 @@
 "C:\Program Files\Java\jdk1.8.0_281\bin\javac.exe" -encoding UTF-8 -cp .\src;.\lib\jrxtx-1.0.1.jar -d .\bin .\src\mfc\*.java
 "C:\Program Files\Java\jdk1.8.0_281\bin\javac.exe" -encoding UTF-8 -cp .\src;.\lib\jrxtx-1.0.1.jar -d .\bin .\src\mfc\gui\*.java
 "C:\Program Files\Java\jdk1.8.0_281\bin\javac.exe" -encoding UTF-8 -cp .\src;.\lib\jrxtx-1.0.1.jar -d .\bin .\src\mfc\model\*.java
+"C:\Program Files\Java\jdk1.8.0_281\bin\javac.exe" -encoding UTF-8 -cp .\src;.\lib\jrxtx-1.0.1.jar -d .\bin .\src\mfc\io\*.java
+"C:\Program Files\Java\jdk1.8.0_281\bin\javac.exe" -encoding UTF-8 -cp .\src;.\lib\jrxtx-1.0.1.jar -d .\bin .\src\mfc\sim\*.java
+"C:\Program Files\Java\jdk1.8.0_281\bin\javac.exe" -encoding UTF-8 -cp .\src;.\lib\jrxtx-1.0.1.jar -d .\bin .\src\mfc\record\*.java
 pause
\ No newline at end of file
@@ -1,25 +1,31 @@
 package mfc;
 
-import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
-import gnu.io.PortInUseException;
-import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -29,8 +35,14 @@ import java.util.logging.SimpleFormatter;
 import java.util.prefs.Preferences;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import mfc.gui.MFCPanel;
+import mfc.io.RXTXTransport;
+import mfc.io.Transport;
+import mfc.model.AcquisitionEngine;
 import mfc.model.MFC;
+import mfc.record.RunRecorder;
+import mfc.sim.SimulatedMFC;
 
 /**
  * Программа для управления РРГ-12 производства ООО "Элточприбор". Программа позволяет
@@ -52,6 +64,16 @@ public class Main {
      */
     private static ArrayList<MFC> mfcs;
     
+    /**
+     * Фоновый опрос подключённых РРГ
+     */
+    private static AcquisitionEngine engine;
+    
+    /**
+     * Запись опроса РРГ в файлы или null, если запись не ведётся
+     */
+    private static RunRecorder recorder;
+    
     private static Logger log;
     
     /**
@@ -73,6 +95,53 @@ public class Main {
     
     private static final Level LOG_LEVEL;
     
+    /**
+     * Количество программных моделей РРГ, которые используются вместо COM портов.
+     * Задаётся свойством -Dmfc.simulators=N, 0 - работа с реальными РРГ
+     */
+    private static final int SIMULATORS;
+    
+    /**
+     * Каталог для записи опроса РРГ. Задаётся свойством -Dmfc.record=DIR, по
+     * умолчанию запись не ведётся. Со свойством -Dmfc.record.compress=true
+     * заполненные файлы записи сжимаются
+     */
+    private static final String RECORD_DIR;
+    
+    /**
+     * Общее время поиска РРГ на всех COM портах на одной скорости связи, мс
+     */
+    private static final long DISCOVERY_TIMEOUT = 5000;
+    
+    /**
+     * Скорости связи, на которых ищутся РРГ, в порядке убывания. Задаются
+     * свойством -Dmfc.bauds=115200,57600,19200, по умолчанию - только
+     * стандартная скорость
+     */
+    private static final int[] BAUD_RATES;
+    
+    /**
+     * Скорости связи, на которых РРГ были найдены при прошлом запуске, по
+     * именам портов
+     */
+    private static Map<String, Integer> cachedBauds;
+    
+    /**
+     * Скорости связи подключённых РРГ по серийным номерам
+     */
+    private static final Map<String, Integer> bauds;
+    
+    /**
+     * Порты, которые проверяются в фоне после открытия окна
+     */
+    private static ArrayList<CommPortIdentifier> pendingPorts;
+    
+    /**
+     * Имена портов и серийные номера подключённых РРГ. Сохраняются в настройках,
+     * чтобы при следующем запуске сначала опросить эти порты
+     */
+    private static LinkedHashMap<String, String> connectedPorts;
+    
     static {
         AVAILABLE_MAX_FLOWS = new Integer[] 
             {6,
@@ -124,6 +193,17 @@ public class Main {
         
         LOG_LEVEL = Level.OFF;
         
+        SIMULATORS = Integer.getInteger("mfc.simulators", 0);
+        
+        RECORD_DIR = System.getProperty("mfc.record");
+        
+        BAUD_RATES = parseBaudRates(System.getProperty("mfc.bauds",
+                String.valueOf(DEFAULT_BAUD)));
+        
+        cachedBauds = new HashMap<String, Integer>();
+        
+        bauds = new ConcurrentHashMap<String, Integer>();
+        
         log = Logger.getLogger(Main.class.getName());
     }
     
@@ -144,9 +224,14 @@ public class Main {
         if (LOG_LEVEL != Level.OFF) {
 			setupLogger();
 		}
-        createAvailableMFCs();
+        if (SIMULATORS > 0) {
+            createSimulatedMFCs(SIMULATORS);
+        } else {
+            createAvailableMFCs();
+        }
         createPanels();
         applyPreferencesToPanels();
+        startAcquisition();
         Locale.setDefault(Locale.US);
         log.info("Setting up window...");
         window = new JFrame("MFC");
@@ -171,6 +256,14 @@ public class Main {
                 log.info("Exiting the program...");
                 
                 Main.savePreferences();
+                Main.engine.shutdown();
+                if (Main.recorder != null) {
+                    try {
+                        Main.recorder.close();
+                    } catch (IOException ex) {
+                        log.severe("Unable to finish the recording: " + ex.getMessage());
+                    }
+                }
                 for (MFC mfc : mfcs) {
                     try {
                         mfc.close();
@@ -211,33 +304,404 @@ public class Main {
         window.setLocation((int)((screenWidth - windowWidth) / 2.0), 
                 (int) ((screenHeight - windowHeight) / 2.0));
         window.setVisible(true);
+        rescanInBackground(window, container);
         
     }
 
     /**
-     * Метод пытается связаться с подключёнными к COM портам РРГ
+     * Метод пытается связаться с подключёнными к COM портам РРГ. Сначала
+     * опрашиваются порты, на которых РРГ были найдены при прошлом запуске. Если
+     * хотя бы один из них ответил, остальные порты проверяются в фоне после
+     * открытия окна ({@link #rescanInBackground}), иначе сразу проверяются все
+     * порты
      */
     private static void createAvailableMFCs() {
         
         log.info("Searching for available MFCs...");
         
-        ArrayList<MFC> availableMFCs;
-        MFC mfc;
-        Enumeration ports;
+        ArrayList<CommPortIdentifier> ports;
+        ArrayList<CommPortIdentifier> cachedPorts;
+        Map<String, String> cache;
+        LinkedHashMap<String, MFC> found;
+        Enumeration identifiers;
         CommPortIdentifier commID;
+        String cachedSerialNum;
 
-        availableMFCs = new ArrayList<MFC>();
+        ports = new ArrayList<CommPortIdentifier>();
+        cachedPorts = new ArrayList<CommPortIdentifier>();
+        Main.pendingPorts = new ArrayList<CommPortIdentifier>();
+        Main.connectedPorts = new LinkedHashMap<String, String>();
 
-        ports = CommPortIdentifier.getPortIdentifiers();
-        if (!ports.hasMoreElements()) {
+        identifiers = CommPortIdentifier.getPortIdentifiers();
+        if (!identifiers.hasMoreElements()) {
             log.severe("There is no available com ports!");
             System.exit(1);
         }
-        while (ports.hasMoreElements()) {
-            commID = (CommPortIdentifier) ports.nextElement();
-            mfc = getMFCFromPort(commID);
+        cache = loadPortCache();
+        while (identifiers.hasMoreElements()) {
+            commID = (CommPortIdentifier) identifiers.nextElement();
+            ports.add(commID);
+            if (cache.containsKey(commID.getName())) {
+                cachedPorts.add(commID);
+            }
+        }
+        found = new LinkedHashMap<String, MFC>();
+        if (cachedPorts.size() > 0) {
+            log.info("Probing " + cachedPorts.size() + " cached ports...");
+            found = discover(cachedPorts);
+        }
+        if (found.size() > 0) {
+            for (CommPortIdentifier port : ports) {
+                if (!found.containsKey(port.getName())) {
+                    Main.pendingPorts.add(port);
+                }
+            }
+        } else {
+            found = discover(ports);
+        }
+        for (Map.Entry<String, MFC> entry : found.entrySet()) {
+            cachedSerialNum = cache.get(entry.getKey());
+            if (cachedSerialNum != null && !cachedSerialNum.equals(entry.getValue().getSerialNum())) {
+                log.info("Port " + entry.getKey() + ": MFC " + cachedSerialNum
+                        + " was replaced by MFC " + entry.getValue().getSerialNum());
+            }
+            Main.connectedPorts.put(entry.getKey(), entry.getValue().getSerialNum());
+        }
+        if (found.size() > 0) {
+            Main.mfcs = new ArrayList<MFC>(found.values());
+        } else {
+            log.severe("There is no available MFCs!");
+            System.exit(1);
+        }
+        if (Main.pendingPorts.isEmpty()) {
+            savePortCache();
+        }
+        
+    }
+    
+    /**
+     * Метод одновременно опрашивает указанные порты. Время поиска определяется
+     * самым медленным портом, а не суммой времени всех портов. РРГ, ответившие
+     * позже {@link #DISCOVERY_TIMEOUT}, отключаются
+     * @param ports порты, к которым предположительно подключены РРГ
+     * @return найденные РРГ по именам портов в порядке перечисления портов
+     */
+    private static LinkedHashMap<String, MFC> discover(List<CommPortIdentifier> ports) {
+        
+        LinkedHashMap<String, MFC> availableMFCs;
+        ArrayList<CompletableFuture<MFC>> probes;
+        ExecutorService executor;
+        CompletableFuture<MFC> probe;
+        MFC mfc;
+        long deadline;
+        long timeout;
+
+        availableMFCs = new LinkedHashMap<String, MFC>();
+        probes = new ArrayList<CompletableFuture<MFC>>();
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread;
+                thread = new Thread(r, "MFC-discovery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (CommPortIdentifier commID : ports) {
+            probes.add(probe(commID, executor));
+        }
+        executor.shutdown();
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DISCOVERY_TIMEOUT
+                * BAUD_RATES.length);
+        for (int i = 0; i < probes.size(); i++) {
+            probe = probes.get(i);
+            timeout = deadline - System.nanoTime();
+            try {
+                mfc = probe.get(Math.max(timeout, 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException ex) {
+                mfc = null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                mfc = null;
+            }
+            // a probe which did not finish in time disconnects by itself
+            if (mfc == null && !probe.complete(null)) {
+                mfc = probe.getNow(null);
+            }
             if (mfc != null) {
-                availableMFCs.add(mfc);
+                availableMFCs.put(ports.get(i).getName(), mfc);
+            }
+        }
+        
+        return availableMFCs;
+        
+    }
+    
+    /**
+     * Метод проверяет в фоне порты, не опрошенные при запуске, и добавляет
+     * найденные РРГ в окно программы
+     * @param window окно программы
+     * @param container панель окна, содержащая панели РРГ
+     */
+    private static void rescanInBackground(final JFrame window, final JPanel container) {
+        
+        Thread rescan;
+        
+        if (Main.pendingPorts == null || Main.pendingPorts.isEmpty()) {
+            return;
+        }
+        
+        log.info("Rescanning " + Main.pendingPorts.size() + " ports in background...");
+        
+        rescan = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final LinkedHashMap<String, MFC> found;
+                found = discover(Main.pendingPorts);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Map.Entry<String, MFC> entry : found.entrySet()) {
+                            addMFC(window, container, entry.getKey(), entry.getValue());
+                        }
+                        Main.pendingPorts.clear();
+                        savePortCache();
+                    }
+                });
+            }
+        }, "MFC-rescan");
+        rescan.setDaemon(true);
+        rescan.start();
+        
+    }
+    
+    /**
+     * Метод добавляет в окно программы РРГ, найденный после открытия окна.
+     * Вызывается в потоке обработки событий Swing
+     * @param window окно программы
+     * @param container панель окна, содержащая панели РРГ
+     * @param port имя порта, к которому подключён РРГ
+     * @param mfc найденный РРГ
+     */
+    private static void addMFC(JFrame window, JPanel container, String port, MFC mfc) {
+        
+        log.info("Adding MFC " + mfc.getSerialNum() + " found @ " + port);
+        
+        MFCPanel panel;
+        Preferences node;
+        
+        node = Preferences.userRoot().node("/mfc");
+        panel = new MFCPanel(mfc, Main.AVAILABLE_MAX_FLOWS, Main.GASES);
+        applyPreferencesToPanel(node, panel);
+        Main.mfcs.add(mfc);
+        Main.panels.add(panel);
+        Main.connectedPorts.put(port, mfc.getSerialNum());
+        startAcquisition(node, mfc);
+        container.add(panel);
+        window.pack();
+        
+    }
+    
+    /**
+     * Метод также запоминает скорости связи, на которых были найдены РРГ
+     * @return имена портов и серийные номера РРГ, найденных при прошлом запуске
+     */
+    private static Map<String, String> loadPortCache() {
+        
+        HashMap<String, String> cache;
+        Preferences root;
+        Preferences node;
+        String serialNum;
+        String port;
+        int baud;
+        
+        cache = new HashMap<String, String>();
+        try {
+            root = Preferences.userRoot();
+            if (!root.nodeExists("/mfc")) {
+                return cache;
+            }
+            node = root.node("/mfc");
+            for (String key : node.keys()) {
+                if (key.startsWith("mfc.") && key.endsWith(".port")) {
+                    serialNum = key.substring(4, key.length() - 5);
+                    port = node.get(key, null);
+                    cache.put(port, serialNum);
+                    baud = node.getInt("mfc." + serialNum + ".baud", 0);
+                    if (baud > 0) {
+                        Main.cachedBauds.put(port, baud);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log.warning("Unable to read cached MFC ports!");
+        }
+        
+        return cache;
+        
+    }
+    
+    /**
+     * Запоминает порты, на которых найдены РРГ, вместо сохранённых ранее
+     */
+    private static void savePortCache() {
+        
+        Preferences node;
+        
+        try {
+            node = Preferences.userRoot().node("/mfc");
+            for (String key : node.keys()) {
+                if (key.startsWith("mfc.") && key.endsWith(".port")) {
+                    node.remove(key);
+                }
+            }
+            for (Map.Entry<String, String> entry : Main.connectedPorts.entrySet()) {
+                node.put("mfc." + entry.getValue() + ".port", entry.getKey());
+                if (Main.bauds.containsKey(entry.getValue())) {
+                    node.putInt("mfc." + entry.getValue() + ".baud",
+                            Main.bauds.get(entry.getValue()));
+                }
+            }
+            node.flush();
+        } catch (Exception ex) {
+            log.warning("Unable to save cached MFC ports!");
+        }
+        
+    }
+    
+    /**
+     * Метод запускает поиск РРГ на указанном порту
+     * @param commID идентификатор порта
+     * @param executor потоки поиска
+     * @return результат поиска: РРГ или null, если РРГ не найден или поиск
+     * прекращён по истечении времени
+     */
+    private static CompletableFuture<MFC> probe(final CommPortIdentifier commID,
+            Executor executor) {
+        
+        final CompletableFuture<MFC> result;
+        
+        result = new CompletableFuture<MFC>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MFC mfc;
+                mfc = getMFCFromPort(commID);
+                if (!result.complete(mfc) && mfc != null) {
+                    log.warning("MFC " + mfc.getSerialNum() + " @ " + commID.getName()
+                            + " answered too late and will not be used");
+                    try {
+                        mfc.close();
+                    } catch (IOException ex) {
+                        log.warning("Unable to close port " + commID.getName() + "!");
+                    }
+                }
+            }
+        });
+        
+        return result;
+        
+    }
+    
+    /**
+     * Метод ищет РРГ, связь с которым потеряна, на свободных COM портах.
+     * Переподключённый USB-преобразователь обычно получает новое имя порта,
+     * поэтому РРГ опознаётся по заводскому номеру. Порт найденного РРГ
+     * запоминается вместо прежнего. Вызывается из потока обмена данными РРГ
+     * @param mfc РРГ, связь с которым потеряна
+     * @return true, если РРГ найден и его состояние восстановлено
+     */
+    private static boolean relocate(final MFC mfc) {
+        
+        Enumeration<?> identifiers;
+        CommPortIdentifier commID;
+        String previous;
+        Integer baud;
+        Transport transport;
+        boolean restored;
+        
+        // MFC keeps the short port name, e.g. ttyUSB1 for /dev/ttyUSB1
+        previous = mfc.getCommID();
+        baud = Main.bauds.get(mfc.getSerialNum());
+        if (baud == null) {
+            baud = DEFAULT_BAUD;
+        }
+        identifiers = CommPortIdentifier.getPortIdentifiers();
+        while (identifiers.hasMoreElements()) {
+            commID = (CommPortIdentifier) identifiers.nextElement();
+            // ports of other connected MFCs are owned by this program
+            if (commID.getPortType() != CommPortIdentifier.PORT_SERIAL
+                    || commID.isCurrentlyOwned()) {
+                continue;
+            }
+            transport = new RXTXTransport(commID, baud);
+            if (transport.getName().equals(previous)) {
+                continue;
+            }
+            try {
+                restored = mfc.reconnect(transport);
+            } catch (IOException ex) {
+                log.fine("MFC " + mfc.getSerialNum() + " is not @ " + commID.getName()
+                        + ": " + ex.getMessage());
+                continue;
+            }
+            // the MFC stays on the new port even if its state was not restored
+            if (restored || transport.getName().equals(mfc.getCommID())) {
+                log.info("MFC " + mfc.getSerialNum() + " was found @ " + commID.getName()
+                        + " instead of " + previous);
+                relocated(commID.getName(), mfc.getSerialNum());
+                return restored;
+            }
+        }
+        
+        return false;
+        
+    }
+    
+    /**
+     * Метод запоминает новый порт РРГ вместо прежнего
+     * @param port полное имя порта, как в {@link #connectedPorts}
+     * @param serialNum серийный номер РРГ
+     */
+    private static void relocated(final String port, final String serialNum) {
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                Main.connectedPorts.values().remove(serialNum);
+                Main.connectedPorts.put(port, serialNum);
+                savePortCache();
+            }
+        });
+        
+    }
+    
+    /**
+     * Метод создаёт программные модели РРГ и связывается с ними так же, как с
+     * реальными регуляторами
+     * @param count количество моделей
+     */
+    private static void createSimulatedMFCs(int count) {
+        
+        log.info("Creating " + count + " simulated MFCs...");
+        
+        ArrayList<MFC> availableMFCs;
+        SimulatedMFC simulator;
+        Transport transport;
+        
+        availableMFCs = new ArrayList<MFC>();
+        
+        for (int i = 0; i < count; i++) {
+            simulator = new SimulatedMFC(1000 + i, i);
+            simulator.setNoise(0.05);
+            transport = simulator.connect();
+            try {
+                transport.open();
+                availableMFCs.add(new MFC(transport));
+            } catch (IOException ex) {
+                log.warning("Unable to connect to simulated MFC " + 
+                        simulator.getSerialNum() + "!\n" + ex.getMessage());
             }
         }
         if (availableMFCs.size() > 0) {
@@ -250,7 +714,10 @@ public class Main {
     }
     
     /**
-     * Метод создаёт объект типа MFC после удачной связи с РРГ через указанный порт
+     * Метод создаёт объект типа MFC после удачной связи с РРГ через указанный
+     * порт. Связь устанавливается на самой высокой скорости из {@link #BAUD_RATES},
+     * на которой РРГ отвечает. Скорость, на которой РРГ был найден при прошлом
+     * запуске, проверяется первой
      * @param commID идентификатор порта к которому предположительно подключён РРГ
      * @return объект типа MFC, если связь с РРГ установлена удачно или null в 
      * противном случае
@@ -260,50 +727,21 @@ public class Main {
         log.fine("Trying to connect to MFC @ " + commID.getName() + "...");
         
         MFC mfc;
-        CommPort commPort;
-        SerialPort serialPort;
-        InputStream in;
-        OutputStream out;
-        BufferedInputStream serialIn;
-        BufferedOutputStream serialOut;
-        
-        commPort = null;
+        Integer cachedBaud;
 
-        if (commID.isCurrentlyOwned()) {
+        mfc = null;
+        if (commID.getPortType() != CommPortIdentifier.PORT_SERIAL) {
+            log.warning("Port " + commID.getName() + " is not serial!");
+        } else if (commID.isCurrentlyOwned()) {
             log.warning("Port " + commID.getName() + " is currently in use!");
-            mfc = null;
         } else {
-            try {
-                commPort = commID.open("MFC", 1000);
-                log.finer("Sucessfully opened port " + commID.getName());
-                if (commPort instanceof SerialPort) {
-                    serialPort = (SerialPort) commPort;
-                    serialPort.setSerialPortParams(DEFAULT_BAUD, SerialPort.DATABITS_8,
-                            SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-                    in = serialPort.getInputStream();
-                    out = serialPort.getOutputStream();
-                    serialIn = new BufferedInputStream(in);
-                    serialOut = new BufferedOutputStream(out);
-                    mfc = new MFC(commPort, serialIn, serialOut);
-                } else {
-                    log.warning("Port " + commID.getName() + " is not serial!");
-                    mfc = null;
-                }
-            } catch (PortInUseException ex) {
-                mfc = null;
-                log.severe("Port " + commID.getName() + " is currently in use!");
-            } catch (UnsupportedCommOperationException ex) {
-                mfc = null;
-                log.severe("Unable to set port " + commID.getName() + " parameters!");
-                if (commPort != null) {
-                    commPort.close();
-                }
-            } catch (IOException ex) {
-                mfc = null;
-                log.warning("Exception occured during connection with port " + 
-                        commID.getName() + "!\n" + ex.getMessage());
-                if (commPort != null) {
-                    commPort.close();
+            cachedBaud = Main.cachedBauds.get(commID.getName());
+            if (cachedBaud != null) {
+                mfc = getMFCFromPort(commID, cachedBaud);
+            }
+            for (int i = 0; mfc == null && i < BAUD_RATES.length; i++) {
+                if (cachedBaud == null || BAUD_RATES[i] != cachedBaud) {
+                    mfc = getMFCFromPort(commID, BAUD_RATES[i]);
                 }
             }
         }
@@ -311,6 +749,78 @@ public class Main {
         return mfc;
 
     }
+    
+    /**
+     * Метод пытается связаться с РРГ через указанный порт на заданной скорости
+     * @param commID идентификатор порта
+     * @param baud скорость связи
+     * @return объект типа MFC или null, если РРГ не ответил
+     */
+    private static MFC getMFCFromPort(CommPortIdentifier commID, int baud) {
+        
+        MFC mfc;
+        Transport transport;
+        
+        transport = new RXTXTransport(commID, baud);
+        try {
+            transport.open();
+            log.finer("Sucessfully opened port " + commID.getName() + " at " + baud + " baud");
+            mfc = new MFC(transport);
+            Main.bauds.put(mfc.getSerialNum(), baud);
+            log.info("MFC " + mfc.getSerialNum() + " @ " + commID.getName()
+                    + " answered at " + baud + " baud");
+        } catch (IOException ex) {
+            mfc = null;
+            log.warning("Exception occured during connection with port " + 
+                    commID.getName() + " at " + baud + " baud!\n" + ex.getMessage());
+            try {
+                transport.close();
+            } catch (IOException e) {
+                log.warning("Unable to close port " + commID.getName() + "!");
+            }
+        }
+        
+        return mfc;
+        
+    }
+    
+    /**
+     * @param list скорости связи через запятую
+     * @return скорости связи в порядке убывания
+     */
+    private static int[] parseBaudRates(String list) {
+        
+        String[] items;
+        int[] rates;
+        int count;
+        
+        items = list.split(",");
+        rates = new int[items.length];
+        count = 0;
+        for (String item : items) {
+            try {
+                rates[count] = Integer.parseInt(item.trim());
+                if (rates[count] > 0) {
+                    count++;
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("Wrong baud rate in mfc.bauds: " + item);
+            }
+        }
+        if (count == 0) {
+            return new int[] {DEFAULT_BAUD};
+        }
+        rates = Arrays.copyOf(rates, count);
+        Arrays.sort(rates);
+        for (int i = 0; i < count / 2; i++) {
+            int rate = rates[i];
+            rates[i] = rates[count - 1 - i];
+            rates[count - 1 - i] = rate;
+        }
+        
+        return rates;
+        
+    }
 
     /**
      * Метод создаёт панели графического интерфейса для каждого подключённого РРГ
@@ -333,6 +843,52 @@ public class Main {
         
     }
 
+    /**
+     * Метод запускает фоновый опрос всех подключённых РРГ и, если задан
+     * каталог {@link #RECORD_DIR}, запись опроса
+     */
+    private static void startAcquisition() {
+        
+        log.info("Starting acquisition of MFC flows...");
+        
+        Preferences node;
+        
+        Main.engine = new AcquisitionEngine();
+        if (SIMULATORS == 0) {
+            Main.engine.setRelocator(Main::relocate);
+        }
+        if (RECORD_DIR != null) {
+            Main.recorder = new RunRecorder(new File(RECORD_DIR));
+            Main.recorder.setCompression(Boolean.getBoolean("mfc.record.compress"));
+        }
+        node = Preferences.userRoot().node("/mfc");
+        for (MFC mfc : Main.mfcs) {
+            startAcquisition(node, mfc);
+        }
+        
+    }
+    
+    /**
+     * Метод запускает фоновый опрос РРГ и его запись, если она ведётся. Период
+     * опроса и адаптивный режим берутся из настроек
+     * @param node настройки программы
+     * @param mfc РРГ
+     */
+    private static void startAcquisition(Preferences node, MFC mfc) {
+        
+        long period;
+        boolean adaptive;
+        
+        period = node.getLong("mfc." + mfc.getSerialNum() + ".poll",
+                AcquisitionEngine.DEFAULT_POLL_PERIOD);
+        adaptive = node.getBoolean("mfc." + mfc.getSerialNum() + ".adaptive", true);
+        Main.engine.start(mfc, period, adaptive);
+        if (Main.recorder != null) {
+            Main.recorder.add(mfc);
+        }
+        
+    }
+
     private static void applyPreferencesToPanels() {
         
         log.info("Applying preferences to GUI panels...");
@@ -349,23 +905,29 @@ public class Main {
             }
             node = root.node(pathName);
             for (MFCPanel panel : panels) {
-                String selectedMaxFlow = node.get("mfc." + 
-                        panel.getMFCSerialNum() + ".maxflow", null);
-                if (selectedMaxFlow != null) {
-                    int flow = Integer.parseInt(selectedMaxFlow);
-                    panel.selectMaxFlow(flow);
-                }
-                String selectedGas = node.get("mfc." + panel.getMFCSerialNum() +
-                        ".gas", null);
-                if (selectedGas != null) {
-                    panel.selectGas(selectedGas);
-                }
+                applyPreferencesToPanel(node, panel);
             }
         } catch (Exception ex) {
             log.warning("Exception was thrown during applying preferences!");
         }
         
     }
+    
+    private static void applyPreferencesToPanel(Preferences node, MFCPanel panel) {
+        
+        String selectedMaxFlow = node.get("mfc." + 
+                panel.getMFCSerialNum() + ".maxflow", null);
+        if (selectedMaxFlow != null) {
+            int flow = Integer.parseInt(selectedMaxFlow);
+            panel.selectMaxFlow(flow);
+        }
+        String selectedGas = node.get("mfc." + panel.getMFCSerialNum() +
+                ".gas", null);
+        if (selectedGas != null) {
+            panel.selectGas(selectedGas);
+        }
+        
+    }
 
     private static void savePreferences() {
         
@@ -385,6 +947,12 @@ public class Main {
                 node.put("mfc." + panel.getMFCSerialNum() + ".gas", 
                         panel.getSelectedGas());
             }
+            for (MFC mfc : mfcs) {
+                node.putLong("mfc." + mfc.getSerialNum() + ".poll",
+                        engine.getPollPeriod(mfc));
+                node.putBoolean("mfc." + mfc.getSerialNum() + ".adaptive",
+                        engine.isAdaptive(mfc));
+            }
         } catch (Exception ex) {
             log.warning("Error occured while saving preferences...");
         }
@@ -6,10 +6,11 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.IOException;
 import java.util.Formatter;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
@@ -22,6 +23,7 @@ import javax.swing.JRadioButton;
 import javax.swing.JSeparator;
 import javax.swing.JSlider;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EtchedBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -100,6 +102,11 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
      */
     private JLabel statusMark;
     
+    /**
+     * true после потери связи с РРГ, до первого успешного измерения расхода
+     */
+    private boolean connectionLost;
+    
     /**
      * РРГ управление которым происходит на данной панели
      */
@@ -150,8 +157,8 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
     }
     
     /**
-     * Конструктор создаёт панель, добавляет на неё компоненты, используя GroupLayout,
-     * запускает таймер.
+     * Конструктор создаёт панель, добавляет на неё компоненты, используя GroupLayout.
+     * Опрос расхода запускается отдельно, см. {@link mfc.model.AcquisitionEngine}
      * @param mfc объект типа MFC отвечающий за связь с РРГ
      * @param availableMaxFlows вектор с вариантами максимальных расходов по азоту
      * @param gases вектор с возможными используемыми газами
@@ -285,8 +292,6 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
                                                .addComponent(percent))))
                        .addComponent(currentFlow));
        
-       mfc.startTimer();
-       
    }
 
     @Override
@@ -425,21 +430,13 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
         
         if (!this.setupFlowSlider.getValueIsAdjusting()) {
             if (controlButton.isSelected()) {
-                
-                boolean successful;
-                
-                try {
-                    successful = mfc.setNewFlow(this.setupFlowSlider.getValue() * 100.0
-                            / this.setupFlowSlider.getMaximum());
-                    if (!successful) {
-                        throw new IOException();
-                    }
-                } catch (IOException ex) {
+                whenDone(mfc.setNewFlowAsync(this.setupFlowSlider.getValue() * 100.0
+                        / this.setupFlowSlider.getMaximum()), () -> { }, () -> {
                     this.statusMark.setText(String.valueOf(false));
                     log.severe(mfc.getSerialNum() + ": accidentally lost connection!");
                     JOptionPane.showMessageDialog(this, "Connection with MFC " +
                             mfc.getSerialNum() + " was lost!", "Error", JOptionPane.ERROR_MESSAGE);
-                }
+                });
             }
         }
         
@@ -528,16 +525,10 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
         if (e.getStateChange() == ItemEvent.SELECTED) {
             
             if (source == this.closedButton) {
-
-                boolean closed;
                 
-                try {
-                    closed = mfc.closeValve();
-                    if (!closed) {
-                        throw new IOException();
-                    }
+                whenDone(mfc.closeValveAsync(), () -> {
                     this.previousValveState = "closed";
-                } catch (IOException ex) {
+                }, () -> {
                     this.closedButton.setSelected(false);
                     if (this.previousValveState.equals("opened")) {
                         this.openedButton.setSelected(true);
@@ -548,19 +539,13 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
                     log.severe(mfc.getSerialNum() + ": valve was not closed!");
                     JOptionPane.showMessageDialog(this, "MFC " + mfc.getSerialNum()
                             + " valve was not closed!", "ERROR", JOptionPane.ERROR_MESSAGE);
-                }
-
+                });
+                
             } else if (source == this.openedButton) {
-
-                boolean opened;
-
-                try {
-                    opened = mfc.openValve();
-                    if (!opened) {
-                        throw new IOException();
-                    }
+                
+                whenDone(mfc.openValveAsync(), () -> {
                     this.previousValveState = "opened";
-                } catch (IOException ex) {
+                }, () -> {
                     this.openedButton.setSelected(false);
                     if (this.previousValveState.equals("closed")) {
                         this.closedButton.setSelected(true);
@@ -571,25 +556,18 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
                     log.severe(mfc.getSerialNum() + ": valve was not opened!");
                     JOptionPane.showMessageDialog(this, "MFC " + mfc.getSerialNum()
                             + " valve was not opened!", "ERROR", JOptionPane.ERROR_MESSAGE);
-                }
-
+                });
+                
             } else if (source == this.controlButton) {
-
-                boolean control;
-                boolean flowValueChanged;
-
-                try {
-                    control = mfc.setValveInControlMode();
-                    if (!control) {
-                        throw new IOException();
-                    }
-                    flowValueChanged = mfc.setNewFlow(this.setupFlowSlider.getValue() * 100.0
-                            / this.setupFlowSlider.getMaximum());
-                    if (!flowValueChanged) {
-                        throw new IOException();
-                    }
+                
+                final double flow;
+                
+                flow = this.setupFlowSlider.getValue() * 100.0 / this.setupFlowSlider.getMaximum();
+                whenDone(mfc.setValveInControlModeAsync().thenCompose((control) -> control
+                        ? mfc.setNewFlowAsync(flow)
+                        : CompletableFuture.completedFuture(false)), () -> {
                     this.previousValveState = "control";
-                } catch (IOException ex) {
+                }, () -> {
                     this.controlButton.setSelected(false);
                     if (this.previousValveState.equals("closed")) {
                         this.closedButton.setSelected(true);
@@ -600,13 +578,36 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
                     log.severe(mfc.getSerialNum() + ": valve was not set in control mode!");
                     JOptionPane.showMessageDialog(this, "MFC " + mfc.getSerialNum()
                             + " valve was not set in control mode!", "ERROR", JOptionPane.ERROR_MESSAGE);
-                }
-
+                });
+                
             }
         }
         
     }
 
+    /**
+     * Обрабатывает результат асинхронной команды РРГ в потоке обработки событий
+     * Swing
+     * @param command результат команды
+     * @param onSuccess действие при успешном выполнении команды
+     * @param onFailure действие при отказе РРГ или ошибке связи
+     */
+    private void whenDone(CompletableFuture<Boolean> command, final Runnable onSuccess,
+            final Runnable onFailure) {
+        
+        command.whenComplete((successful, ex) -> SwingUtilities.invokeLater(() -> {
+            if (ex == null && successful) {
+                onSuccess.run();
+            } else {
+                if (ex != null) {
+                    log.log(Level.FINE, mfc.getSerialNum() + ": command failed", ex);
+                }
+                onFailure.run();
+            }
+        }));
+        
+    }
+
     @Override
     public void propertyChange(PropertyChangeEvent pce) {
         
@@ -632,10 +633,19 @@ public class MFCPanel extends JPanel implements ActionListener, ChangeListener,
         if (Double.isNaN(flow)) {
             currentFlow.setText("Текущий расход: ###.## мл/мин (##.##%)");
             statusMark.setText(String.valueOf(false));
-            log.severe(mfc.getSerialNum() + ": connection with MFC lost!");
-            JOptionPane.showMessageDialog(this, "Connection with " + 
-                    mfc.getSerialNum() + " MFC lost!", "ERROR", JOptionPane.ERROR_MESSAGE);
+            if (!this.connectionLost) {
+                // the connection is restored in background, tell the user only once
+                this.connectionLost = true;
+                log.severe(mfc.getSerialNum() + ": connection with MFC lost!");
+                JOptionPane.showMessageDialog(this, "Connection with " + 
+                        mfc.getSerialNum() + " MFC lost!", "ERROR", JOptionPane.ERROR_MESSAGE);
+            }
         } else {
+            if (this.connectionLost) {
+                this.connectionLost = false;
+                statusMark.setText(String.valueOf(true));
+                log.info(mfc.getSerialNum() + ": connection with MFC restored");
+            }
             flowInSCCM = flow * this.setupFlowSlider.getMaximum() / 10000.0;
             f.format("%3.2f", flowInSCCM);
             currentFlow.setText("Текущий расход: " + f.toString() + " мл/мин ("
@@ -0,0 +1,267 @@
+package mfc.io;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Канал связи в памяти процесса. Все переданные байты отдаются подключённому
+ * {@link Peer}, который отвечает методом {@link #deliver(byte[], int, int, long)}.
+ * Используется для работы протокола без оборудования: с программной моделью
+ * РРГ или в нагрузочных испытаниях.
+ *
+ * @author Лейбо Д.
+ */
+public class MemoryTransport implements Transport {
+    
+    /**
+     * Удалённая сторона канала
+     */
+    public interface Peer {
+        
+        /**
+         * Вызывается в потоке, выполняющем запись в канал
+         * @param data переданные байты
+         * @param off смещение в буфере
+         * @param len количество байт
+         * @param line канал, через который следует отвечать
+         */
+        void receive(byte[] data, int off, int len, MemoryTransport line);
+        
+    }
+    
+    private final String name;
+    
+    private final Peer peer;
+    
+    private final ReentrantLock lock;
+    
+    private final Condition arrived;
+    
+    /**
+     * Принятые, но ещё не прочитанные порции данных
+     */
+    private final ArrayDeque<Chunk> inbound;
+    
+    private volatile boolean open;
+    
+    /**
+     * @param name имя канала
+     * @param peer удалённая сторона канала
+     */
+    public MemoryTransport(String name, Peer peer) {
+        
+        this.name = name;
+        this.peer = peer;
+        this.lock = new ReentrantLock();
+        this.arrived = this.lock.newCondition();
+        this.inbound = new ArrayDeque<Chunk>();
+        this.open = false;
+        
+    }
+    
+    @Override
+    public String getName() {
+        
+        return this.name;
+        
+    }
+    
+    @Override
+    public void open() throws IOException {
+        
+        this.open = true;
+        
+    }
+    
+    @Override
+    public void close() throws IOException {
+        
+        this.lock.lock();
+        try {
+            this.open = false;
+            this.inbound.clear();
+            this.arrived.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        
+    }
+    
+    @Override
+    public boolean isOpen() {
+        
+        return this.open;
+        
+    }
+    
+    @Override
+    public void write(byte[] frame, int off, int len) throws IOException {
+        
+        if (!this.open) {
+            throw new IOException(this.name + " is closed");
+        }
+        this.peer.receive(frame, off, len, this);
+        
+    }
+    
+    @Override
+    public int read(byte[] buffer, int off, int len, long deadline) throws IOException {
+        
+        int count;
+        long now;
+        long wait;
+        Chunk head;
+        
+        count = 0;
+        
+        this.lock.lock();
+        try {
+            while (count < len) {
+                if (!this.open) {
+                    return count == 0 ? -1 : count;
+                }
+                now = System.nanoTime();
+                head = this.inbound.peek();
+                if (head != null && head.readyAt - now <= 0) {
+                    count = count + head.take(buffer, off + count, len - count);
+                    if (head.isEmpty()) {
+                        this.inbound.poll();
+                    }
+                    continue;
+                }
+                wait = deadline - now;
+                if (head != null) {
+                    wait = Math.min(wait, head.readyAt - now);
+                }
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    this.arrived.awaitNanos(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + this.name);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        
+        return count;
+        
+    }
+    
+    @Override
+    public int drain() throws IOException {
+        
+        int count;
+        long now;
+        Chunk head;
+        
+        count = 0;
+        
+        this.lock.lock();
+        try {
+            now = System.nanoTime();
+            head = this.inbound.peek();
+            while (head != null && head.readyAt - now <= 0) {
+                count = count + head.remaining();
+                this.inbound.poll();
+                head = this.inbound.peek();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        
+        return count;
+        
+    }
+    
+    /**
+     * Ставит данные в очередь на чтение
+     * @param data данные удалённой стороны
+     * @param off смещение в буфере
+     * @param len количество байт
+     * @param delay задержка в наносекундах, после которой данные станут доступны
+     */
+    public void deliver(byte[] data, int off, int len, long delay) {
+        
+        Chunk chunk;
+        Chunk last;
+        
+        chunk = new Chunk(data, off, len, System.nanoTime() + delay);
+        
+        this.lock.lock();
+        try {
+            if (!this.open) {
+                return;
+            }
+            // a serial line never reorders bytes
+            last = this.inbound.peekLast();
+            if (last != null && chunk.readyAt - last.readyAt < 0) {
+                chunk.readyAt = last.readyAt;
+            }
+            this.inbound.add(chunk);
+            this.arrived.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        
+    }
+    
+    /**
+     * Ставит данные в очередь на чтение без задержки
+     * @param data данные удалённой стороны
+     */
+    public void deliver(byte[] data) {
+        
+        deliver(data, 0, data.length, 0);
+        
+    }
+    
+    private static class Chunk {
+        
+        private final byte[] data;
+        
+        private int position;
+        
+        private long readyAt;
+        
+        Chunk(byte[] data, int off, int len, long readyAt) {
+            
+            this.data = new byte[len];
+            System.arraycopy(data, off, this.data, 0, len);
+            this.position = 0;
+            this.readyAt = readyAt;
+            
+        }
+        
+        int take(byte[] buffer, int off, int len) {
+            
+            int n;
+            
+            n = Math.min(len, this.data.length - this.position);
+            System.arraycopy(this.data, this.position, buffer, off, n);
+            this.position = this.position + n;
+            
+            return n;
+            
+        }
+        
+        boolean isEmpty() {
+            
+            return this.position == this.data.length;
+            
+        }
+        
+        int remaining() {
+            
+            return this.data.length - this.position;
+            
+        }
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,165 @@
+package mfc.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Канал связи через файл устройства последовательного порта (например,
+ * /dev/ttyUSB0 в Linux) средствами java.nio без сторонних библиотек.
+ * Параметры линии должны быть заданы заранее средствами операционной системы,
+ * например: stty -F /dev/ttyUSB0 19200 raw -echo min 0 time 0. При таких
+ * настройках чтение не блокируется: {@link #read} проверяет порт каждую
+ * миллисекунду до указанного момента, а {@link #drain} возвращает управление
+ * сразу, если принятых байт нет. При ненулевом time каждое пустое чтение
+ * ожидает до time десятых долей секунды, и обмен замедляется.
+ *
+ * @author Лейбо Д.
+ */
+public class NIOTransport implements Transport {
+    
+    private final Path device;
+    
+    private FileChannel channel;
+    
+    /**
+     * Буфер для отбрасываемых байт
+     */
+    private final ByteBuffer scratch;
+    
+    private static final Logger log;
+    
+    static {
+        
+        log = Logger.getLogger(NIOTransport.class.getName());
+        
+    }
+    
+    /**
+     * @param device путь к файлу устройства порта
+     */
+    public NIOTransport(Path device) {
+        
+        this.device = device;
+        this.scratch = ByteBuffer.allocate(64);
+        
+    }
+    
+    @Override
+    public String getName() {
+        
+        return this.device.getFileName().toString();
+        
+    }
+    
+    @Override
+    public void open() throws IOException {
+        
+        log.fine("Opening device " + this.device + "...");
+        
+        this.channel = FileChannel.open(this.device, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+                
+    }
+    
+    @Override
+    public void close() throws IOException {
+        
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } finally {
+            this.channel = null;
+        }
+        
+    }
+    
+    @Override
+    public boolean isOpen() {
+        
+        return this.channel != null;
+        
+    }
+    
+    @Override
+    public void write(byte[] frame, int off, int len) throws IOException {
+        
+        ByteBuffer buffer;
+        
+        buffer = ByteBuffer.wrap(frame, off, len);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        
+    }
+    
+    @Override
+    public int read(byte[] buffer, int off, int len, long deadline) throws IOException {
+        
+        FileChannel ch;
+        ByteBuffer dst;
+        int n;
+        
+        ch = this.channel;
+        if (ch == null) {
+            return -1;
+        }
+        dst = ByteBuffer.wrap(buffer, off, len);
+        while (dst.hasRemaining()) {
+            // with "min 0 time 0" an idle line makes read() return at once
+            // with -1, which is not the end of the stream
+            n = ch.read(dst);
+            if (n > 0 || !dst.hasRemaining()) {
+                continue;
+            }
+            if (!ch.isOpen() || System.nanoTime() - deadline >= 0) {
+                break;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for data");
+            }
+        }
+        if (dst.position() == off && !ch.isOpen()) {
+            return -1;
+        }
+        
+        return dst.position() - off;
+        
+    }
+    
+    /**
+     * {@inheritDoc} Байты читаются, пока порт не перестанет их возвращать
+     */
+    @Override
+    public int drain() throws IOException {
+        
+        int count;
+        int n;
+        
+        if (this.channel == null) {
+            throw new IOException("Port " + getName() + " is closed");
+        }
+        count = 0;
+        
+        // read() does not block with "min 0 time 0"
+        this.scratch.clear();
+        n = this.channel.read(this.scratch);
+        while (n > 0) {
+            count = count + n;
+            this.scratch.clear();
+            n = this.channel.read(this.scratch);
+        }
+        
+        return count;
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,299 @@
+package mfc.io;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+/**
+ * Канал связи через COM порт с помощью библиотеки RXTX
+ *
+ * @author Лейбо Д.
+ */
+public class RXTXTransport implements Transport {
+    
+    /**
+     * Время ожидания открытия порта, мс
+     */
+    private static final int OPEN_TIMEOUT = 1000;
+    
+    /**
+     * Время, на которое драйвер блокирует чтение в ожидании данных, мс. Перед
+     * чтением заменяется временем, оставшимся до заданного момента
+     */
+    private static final int RECEIVE_TIMEOUT = 500;
+    
+    /**
+     * Количество байт, при поступлении которых драйвер завершает чтение
+     */
+    private static final int RECEIVE_THRESHOLD = 10;
+    
+    private final CommPortIdentifier commID;
+    
+    private final String name;
+    
+    private final int baudRate;
+    
+    private CommPort com;
+    
+    private BufferedInputStream in;
+    
+    private BufferedOutputStream out;
+    
+    /**
+     * false, если драйвер не поддерживает блокирующее чтение с таймаутом
+     */
+    private boolean blockingRead;
+    
+    /**
+     * Время блокирования чтения, установленное в драйвере, мс
+     */
+    private int receiveTimeout;
+    
+    /**
+     * Буфер для отбрасываемых байт
+     */
+    private final byte[] scratch;
+    
+    private static final Logger log;
+    
+    static {
+        
+        log = Logger.getLogger(RXTXTransport.class.getName());
+        
+    }
+    
+    /**
+     * @param commID идентификатор порта
+     * @param baudRate скорость связи
+     */
+    public RXTXTransport(CommPortIdentifier commID, int baudRate) {
+        
+        this.commID = commID;
+        this.name = shortName(commID.getName());
+        this.baudRate = baudRate;
+        this.scratch = new byte[64];
+        
+    }
+    
+    @Override
+    public String getName() {
+        
+        return this.name;
+        
+    }
+    
+    @Override
+    public void open() throws IOException {
+        
+        CommPort commPort;
+        SerialPort serialPort;
+        
+        log.fine("Opening port " + this.commID.getName() + "...");
+        
+        try {
+            commPort = this.commID.open("MFC", OPEN_TIMEOUT);
+        } catch (PortInUseException ex) {
+            throw new IOException("Port " + this.commID.getName() + " is currently in use!", ex);
+        }
+        if (!(commPort instanceof SerialPort)) {
+            commPort.close();
+            throw new IOException("Port " + this.commID.getName() + " is not serial!");
+        }
+        serialPort = (SerialPort) commPort;
+        try {
+            serialPort.setSerialPortParams(this.baudRate, SerialPort.DATABITS_8,
+                    SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+        } catch (UnsupportedCommOperationException ex) {
+            commPort.close();
+            throw new IOException("Unable to set port " + this.commID.getName()
+                    + " parameters!", ex);
+        }
+        try {
+            commPort.enableReceiveThreshold(RECEIVE_THRESHOLD);
+            commPort.enableReceiveTimeout(RECEIVE_TIMEOUT);
+            this.receiveTimeout = RECEIVE_TIMEOUT;
+            this.blockingRead = true;
+        } catch (UnsupportedCommOperationException ex) {
+            log.warning(this.name + ": port does not support receive threshold and timeout, "
+                    + "falling back to polling of available bytes");
+            this.blockingRead = false;
+        }
+        try {
+            this.in = new BufferedInputStream(commPort.getInputStream());
+            this.out = new BufferedOutputStream(commPort.getOutputStream());
+        } catch (IOException ex) {
+            commPort.close();
+            throw ex;
+        }
+        this.com = commPort;
+        
+    }
+    
+    @Override
+    public void close() throws IOException {
+        
+        if (this.com == null) {
+            return;
+        }
+        try {
+            this.in.close();
+            this.out.close();
+        } finally {
+            this.com.close();
+            this.com = null;
+        }
+        
+    }
+    
+    @Override
+    public boolean isOpen() {
+        
+        return this.com != null;
+        
+    }
+    
+    @Override
+    public void write(byte[] frame, int off, int len) throws IOException {
+        
+        this.out.write(frame, off, len);
+        this.out.flush();
+        
+    }
+    
+    @Override
+    public int read(byte[] buffer, int off, int len, long deadline) throws IOException {
+        
+        int count;
+        int n;
+        
+        count = 0;
+        
+        // with receive threshold and timeout enabled the driver blocks in read()
+        // until the whole frame arrives or the timeout expires
+        while (count < len) {
+            if (this.blockingRead) {
+                if (!setReceiveTimeout(deadline)) {
+                    break;
+                }
+            } else if (!waitForData(this.in, deadline)) {
+                break;
+            }
+            n = this.in.read(buffer, off + count, len - count);
+            if (n < 0) {
+                if (count == 0) {
+                    count = -1;
+                }
+                break;
+            }
+            count = count + n;
+            if (count < len && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        
+        return count;
+        
+    }
+    
+    @Override
+    public int drain() throws IOException {
+        
+        int count;
+        int available;
+        int n;
+        
+        if (this.in == null) {
+            throw new IOException("Port " + this.name + " is closed");
+        }
+        count = 0;
+        
+        // read() does not block while the driver reports available bytes
+        available = this.in.available();
+        while (available > 0) {
+            n = this.in.read(this.scratch, 0, Math.min(available, this.scratch.length));
+            if (n <= 0) {
+                break;
+            }
+            count = count + n;
+            available = this.in.available();
+        }
+        
+        return count;
+        
+    }
+    
+    /**
+     * Ограничивает время блокирования чтения в драйвере оставшимся до заданного
+     * момента временем. Драйвер перенастраивается, только если время изменилось
+     * @param deadline момент времени по {@link System#nanoTime()}
+     * @return false, если время истекло и принятых байт нет
+     */
+    private boolean setReceiveTimeout(long deadline) throws IOException {
+        
+        long remaining;
+        int timeout;
+        
+        remaining = deadline - System.nanoTime();
+        if (remaining <= 0 && this.in.available() == 0) {
+            return false;
+        }
+        timeout = (int) Math.max(1, (remaining + 999999) / 1000000);
+        if (timeout != this.receiveTimeout) {
+            try {
+                this.com.enableReceiveTimeout(timeout);
+                this.receiveTimeout = timeout;
+            } catch (UnsupportedCommOperationException ex) {
+                log.warning(this.name + ": unable to change receive timeout, "
+                        + "falling back to polling of available bytes");
+                this.com.disableReceiveThreshold();
+                this.com.disableReceiveTimeout();
+                this.blockingRead = false;
+                return waitForData(this.in, deadline);
+            }
+        }
+        
+        return true;
+        
+    }
+    
+    private static boolean waitForData(InputStream in, long deadline) throws IOException {
+        
+        while (in.available() == 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for data");
+            }
+        }
+        
+        return true;
+        
+    }
+    
+    /**
+     * Отбрасывает префиксы вида //./ или /dev/ из системного имени порта
+     * @param portName имя порта, полученное от RXTX
+     * @return короткое имя порта
+     */
+    private static String shortName(String portName) {
+        
+        int i;
+        
+        i = Math.max(portName.lastIndexOf('/'), portName.lastIndexOf('\\'));
+        
+        return portName.substring(i + 1);
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+package mfc.io;
+
+import java.io.IOException;
+
+/**
+ * Канал связи с РРГ. Скрывает от протокола "Элточприбор-10М" конкретную
+ * реализацию последовательного порта, что позволяет использовать разные
+ * библиотеки для работы с COM портами, а также подключать программные модели
+ * регуляторов.
+ *
+ * @author Лейбо Д.
+ */
+public interface Transport {
+    
+    /**
+     * @return короткое имя порта, например COM3 или ttyUSB0
+     */
+    String getName();
+    
+    /**
+     * Открывает канал связи
+     * @throws IOException если порт занят или не может быть настроен
+     */
+    void open() throws IOException;
+    
+    /**
+     * Закрывает канал связи. Повторный вызов ничего не делает
+     * @throws IOException при ошибке закрытия порта
+     */
+    void close() throws IOException;
+    
+    /**
+     * @return true, если канал открыт
+     */
+    boolean isOpen();
+    
+    /**
+     * Передаёт кадр целиком и дожидается его отправки из буферов программы
+     * @param frame буфер с кадром
+     * @param off смещение начала кадра в буфере
+     * @param len длина кадра
+     * @throws IOException при ошибке записи
+     */
+    void write(byte[] frame, int off, int len) throws IOException;
+    
+    /**
+     * Читает до len байт, ожидая их поступления не дольше указанного момента
+     * времени
+     * @param buffer буфер для принятых байт
+     * @param off смещение в буфере
+     * @param len необходимое количество байт
+     * @param deadline момент времени по {@link System#nanoTime()}, после которого
+     * ожидание прекращается
+     * @return количество принятых байт, которое может быть меньше len, если
+     * время ожидания истекло, или -1, если канал закрыт и ничего не принято
+     * @throws IOException при ошибке чтения
+     */
+    int read(byte[] buffer, int off, int len, long deadline) throws IOException;
+    
+    /**
+     * Отбрасывает уже принятые, но не прочитанные байты, не ожидая новых.
+     * Вызывается перед передачей команды, чтобы опоздавший ответ на предыдущую
+     * команду не был принят за ответ на новую
+     * @return количество отброшенных байт
+     * @throws IOException при ошибке чтения
+     */
+    int drain() throws IOException;
+    
+}
\ No newline at end of file
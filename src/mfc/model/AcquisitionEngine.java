@@ -0,0 +1,552 @@
+package mfc.model;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Фоновый опрос подключённых РРГ. Опрос выполняется в потоке обмена данными
+ * самого РРГ ({@link MFC#getWorker()}), поэтому запросы расхода и команды
+ * пользователя не пересекаются на линии, а поток обработки событий Swing никогда
+ * не ждёт ответа от COM порта. Готовые значения расхода передаются в
+ * графический интерфейс через {@link Handoff}.
+ * <p>
+ * Период опроса задаётся для каждого РРГ отдельно. В адаптивном режиме после
+ * переключения клапана или задания расхода РРГ опрашивается с периодом
+ * {@link #SETTLING_POLL_PERIOD}, пока расход не установится, после чего период
+ * удваивается до заданного.
+ * <p>
+ * После {@link #LOST_AFTER} неудачных опросов подряд связь с РРГ считается
+ * потерянной: опрос прекращается, и связь восстанавливается через
+ * {@link MFC#reconnect()} с интервалом, удваивающимся от
+ * {@link #MIN_RECONNECT_DELAY} до {@link #MAX_RECONNECT_DELAY}. Если связь
+ * через прежний порт не восстановлена за {@link #RELOCATE_AFTER} попыток, РРГ
+ * ищется на других портах с помощью {@link #setRelocator поиска}.
+ *
+ * @author Лейбо Д.
+ */
+public class AcquisitionEngine {
+    
+    /**
+     * Период опроса РРГ по умолчанию, мс
+     */
+    public static final long DEFAULT_POLL_PERIOD = 2000;
+    
+    /**
+     * Минимальный период опроса, мс. Обмен запросом и ответом на 19200 бод
+     * занимает около 10 мс, при меньшем периоде запросы идут подряд
+     */
+    public static final long MIN_POLL_PERIOD = 20;
+    
+    /**
+     * Период опроса при установлении расхода в адаптивном режиме, мс
+     */
+    public static final long SETTLING_POLL_PERIOD = 100;
+    
+    /**
+     * Изменение расхода между соседними измерениями, при котором расход
+     * считается установившимся, %
+     */
+    private static final double SETTLE_TOLERANCE = 0.1;
+    
+    /**
+     * Количество подряд идущих измерений в пределах {@link #SETTLE_TOLERANCE},
+     * после которого период опроса начинает увеличиваться
+     */
+    private static final int SETTLE_SAMPLES = 5;
+    
+    /**
+     * Количество неудачных опросов подряд, после которого связь с РРГ
+     * считается потерянной
+     */
+    public static final int LOST_AFTER = 3;
+    
+    /**
+     * Интервал между попытками восстановить связь, мс
+     */
+    public static final long MIN_RECONNECT_DELAY = 1000;
+    
+    public static final long MAX_RECONNECT_DELAY = 30000;
+    
+    /**
+     * Количество неудачных попыток восстановить связь через прежний порт,
+     * после которого РРГ ищется на других портах
+     */
+    public static final int RELOCATE_AFTER = 3;
+    
+    /**
+     * Задачи опроса, по одной на каждый РРГ
+     */
+    private final Map<MFC, Poller> pollers;
+    
+    private volatile Relocator relocator;
+    
+    private static final Logger log;
+    
+    static {
+        
+        log = Logger.getLogger(AcquisitionEngine.class.getName());
+        
+    }
+    
+    public AcquisitionEngine() {
+        
+        this.pollers = new LinkedHashMap<MFC, Poller>();
+        this.relocator = null;
+        
+    }
+    
+    /**
+     * Задаёт поиск РРГ на других портах после потери связи
+     * @param relocator поиск или null, чтобы восстанавливать связь только через
+     * прежний порт
+     */
+    public void setRelocator(Relocator relocator) {
+        
+        this.relocator = relocator;
+        
+    }
+    
+    /**
+     * Запускает адаптивный опрос расхода для указанного РРГ с периодом по
+     * умолчанию
+     * @param mfc РРГ, который необходимо опрашивать
+     */
+    public void start(MFC mfc) {
+        
+        start(mfc, DEFAULT_POLL_PERIOD, true);
+        
+    }
+    
+    /**
+     * Запускает периодический опрос расхода для указанного РРГ
+     * @param mfc РРГ, который необходимо опрашивать
+     * @param period период опроса установившегося расхода, мс
+     * @param adaptive true - учащать опрос при установлении расхода
+     */
+    public synchronized void start(final MFC mfc, long period, boolean adaptive) {
+        
+        Poller poller;
+        
+        if (this.pollers.containsKey(mfc)) {
+            log.warning(mfc.getSerialNum() + ": polling is already started");
+            return;
+        }
+        
+        log.fine(mfc.getSerialNum() + ": starting polling every " + period
+                + " ms" + (adaptive ? ", adaptive" : ""));
+        
+        poller = new Poller(this, mfc, clamp(period), adaptive);
+        mfc.setTransientListener(poller::transientStarted);
+        poller.schedule(poller.period);
+        this.pollers.put(mfc, poller);
+        
+    }
+    
+    /**
+     * Задаёт период опроса установившегося расхода. Новый период применяется
+     * сразу, а не после ближайшего опроса
+     * @param mfc РРГ
+     * @param period период опроса, мс. Значения меньше {@link #MIN_POLL_PERIOD}
+     * заменяются минимальным
+     */
+    public synchronized void setPollPeriod(MFC mfc, long period) {
+        
+        Poller poller;
+        
+        log.fine(mfc.getSerialNum() + ": setting poll period " + period + " ms");
+        
+        poller = getPoller(mfc);
+        poller.period = clamp(period);
+        poller.restart(false);
+        
+    }
+    
+    /**
+     * @param mfc РРГ
+     * @return период опроса установившегося расхода, мс
+     */
+    public synchronized long getPollPeriod(MFC mfc) {
+        
+        return getPoller(mfc).period;
+        
+    }
+    
+    /**
+     * Включает или выключает адаптивный опрос
+     * @param mfc РРГ
+     * @param adaptive true - учащать опрос при установлении расхода
+     */
+    public synchronized void setAdaptive(MFC mfc, boolean adaptive) {
+        
+        Poller poller;
+        
+        log.fine(mfc.getSerialNum() + ": adaptive polling " + (adaptive ? "on" : "off"));
+        
+        poller = getPoller(mfc);
+        poller.adaptive = adaptive;
+        poller.restart(false);
+        
+    }
+    
+    /**
+     * @param mfc РРГ
+     * @return true, если опрос учащается при установлении расхода
+     */
+    public synchronized boolean isAdaptive(MFC mfc) {
+        
+        return getPoller(mfc).adaptive;
+        
+    }
+    
+    /**
+     * Останавливает опрос всех РРГ. Начатый обмен данными не прерывается, его
+     * завершения дожидается {@link MFC#close()}
+     */
+    public synchronized void shutdown() {
+        
+        log.fine("Stopping polling...");
+        
+        for (Poller poller : this.pollers.values()) {
+            poller.mfc.setTransientListener(null);
+            poller.stop();
+        }
+        this.pollers.clear();
+        
+    }
+    
+    private Poller getPoller(MFC mfc) {
+        
+        Poller poller;
+        
+        poller = this.pollers.get(mfc);
+        if (poller == null) {
+            throw new IllegalArgumentException(mfc.getSerialNum() + " is not polled");
+        }
+        
+        return poller;
+        
+    }
+    
+    private static long clamp(long period) {
+        
+        return Math.max(period, MIN_POLL_PERIOD);
+        
+    }
+    
+    /**
+     * Опрос одного РРГ. Следующий опрос планируется после завершения текущего,
+     * период отсчитывается от начала обмена. Состояние адаптивного режима и
+     * восстановления связи изменяется только в потоке обмена данными РРГ
+     */
+    private static class Poller implements Runnable {
+        
+        private final AcquisitionEngine engine;
+        
+        private final MFC mfc;
+        
+        private final Handoff handoff;
+        
+        /**
+         * Период опроса установившегося расхода, мс
+         */
+        private volatile long period;
+        
+        private volatile boolean adaptive;
+        
+        private volatile boolean stopped;
+        
+        private volatile ScheduledFuture<?> next;
+        
+        /**
+         * Текущий период опроса в адаптивном режиме, мс
+         */
+        private long current;
+        
+        /**
+         * Количество подряд идущих измерений установившегося расхода
+         */
+        private int stable;
+        
+        private double previous;
+        
+        /**
+         * Количество неудачных опросов подряд
+         */
+        private int failures;
+        
+        /**
+         * Интервал до следующей попытки восстановить связь или 0, если связь
+         * не потеряна, мс
+         */
+        private long reconnectDelay;
+        
+        /**
+         * Количество неудачных попыток восстановить связь подряд
+         */
+        private int attempts;
+        
+        Poller(AcquisitionEngine engine, MFC mfc, long period, boolean adaptive) {
+            
+            this.engine = engine;
+            this.mfc = mfc;
+            this.handoff = new Handoff(mfc);
+            this.period = period;
+            this.adaptive = adaptive;
+            this.stopped = false;
+            this.current = period;
+            this.stable = 0;
+            this.previous = Double.NaN;
+            this.failures = 0;
+            this.reconnectDelay = 0;
+            this.attempts = 0;
+            
+        }
+        
+        @Override
+        public void run() {
+            
+            long started;
+            long elapsed;
+            double flow;
+            
+            if (this.stopped) {
+                return;
+            }
+            if (this.reconnectDelay > 0) {
+                reconnect();
+                return;
+            }
+            started = System.nanoTime();
+            flow = this.mfc.pollFlow();
+            if (Double.isNaN(flow)) {
+                this.failures++;
+            } else {
+                this.failures = 0;
+            }
+            this.handoff.offer(flow);
+            if (this.failures >= LOST_AFTER) {
+                log.warning(this.mfc.getSerialNum() + ": connection lost after "
+                        + this.failures + " failed polls");
+                this.reconnectDelay = MIN_RECONNECT_DELAY;
+                this.attempts = 0;
+                schedule(this.reconnectDelay);
+                return;
+            }
+            elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            schedule(Math.max(0, nextPeriod(flow) - elapsed));
+            
+        }
+        
+        private void reconnect() {
+            
+            boolean restored;
+            Relocator relocator;
+            
+            try {
+                restored = this.mfc.reconnect();
+            } catch (IOException | RuntimeException ex) {
+                log.fine(this.mfc.getSerialNum() + ": reconnection failed: " + ex.getMessage());
+                restored = false;
+            }
+            this.attempts++;
+            relocator = this.engine.relocator;
+            if (!restored && relocator != null && this.attempts >= RELOCATE_AFTER) {
+                // an unplugged USB adapter usually comes back under another name
+                log.fine(this.mfc.getSerialNum() + ": searching on other ports...");
+                try {
+                    restored = relocator.relocate(this.mfc);
+                } catch (IOException | RuntimeException ex) {
+                    log.fine(this.mfc.getSerialNum() + ": search failed: " + ex.getMessage());
+                }
+            }
+            if (restored) {
+                log.info(this.mfc.getSerialNum() + ": connection restored");
+                this.failures = 0;
+                this.reconnectDelay = 0;
+                this.current = Math.min(SETTLING_POLL_PERIOD, this.period);
+                this.stable = 0;
+                this.previous = Double.NaN;
+                schedule(0);
+            } else {
+                this.reconnectDelay = Math.min(this.reconnectDelay * 2, MAX_RECONNECT_DELAY);
+                log.fine(this.mfc.getSerialNum() + ": next reconnection attempt in "
+                        + this.reconnectDelay + " ms");
+                schedule(this.reconnectDelay);
+            }
+            
+        }
+        
+        private long nextPeriod(double flow) {
+            
+            long period;
+            
+            period = this.period;
+            if (!this.adaptive || Double.isNaN(flow)) {
+                // do not hurry a controller which does not answer
+                this.current = period;
+                this.stable = 0;
+                this.previous = Double.NaN;
+                return period;
+            }
+            if (Math.abs(flow - this.previous) < SETTLE_TOLERANCE) {
+                this.stable++;
+            } else {
+                this.stable = 0;
+            }
+            this.previous = flow;
+            if (this.stable >= SETTLE_SAMPLES) {
+                this.current = Math.min(this.current * 2, period);
+            }
+            
+            return this.current;
+            
+        }
+        
+        /**
+         * Вызывается после команды, изменяющей расход, в потоке, выполнившем
+         * команду
+         */
+        void transientStarted() {
+            
+            if (this.adaptive) {
+                restart(true);
+            }
+            
+        }
+        
+        /**
+         * Отменяет запланированный опрос и опрашивает РРГ сразу. Если связь
+         * потеряна, запланированная попытка восстановить связь не переносится
+         * @param settling true - начать опрос с периодом установления расхода
+         */
+        void restart(final boolean settling) {
+            
+            try {
+                this.mfc.getWorker().execute(() -> {
+                    ScheduledFuture<?> pending;
+                    if (settling) {
+                        this.current = Math.min(SETTLING_POLL_PERIOD, this.period);
+                        this.stable = 0;
+                        this.previous = Double.NaN;
+                    } else {
+                        this.current = Math.min(this.current, this.period);
+                    }
+                    if (this.reconnectDelay > 0) {
+                        // keep the reconnection backoff, the new period applies once restored
+                        return;
+                    }
+                    pending = this.next;
+                    if (pending != null) {
+                        pending.cancel(false);
+                    }
+                    run();
+                });
+            } catch (RejectedExecutionException ex) {
+                log.fine(this.mfc.getSerialNum() + ": connection is closed, polling is not restarted");
+            }
+            
+        }
+        
+        void schedule(long delay) {
+            
+            if (this.stopped) {
+                return;
+            }
+            try {
+                this.next = this.mfc.getWorker().schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                log.fine(this.mfc.getSerialNum() + ": connection is closed, polling is stopped");
+                this.stopped = true;
+            }
+            
+        }
+        
+        void stop() {
+            
+            ScheduledFuture<?> pending;
+            
+            this.stopped = true;
+            pending = this.next;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Поиск РРГ, связь с которым потеряна, на других портах
+     */
+    public interface Relocator {
+        
+        /**
+         * Ищет РРГ на свободных портах и переносит его на порт, где ответил РРГ
+         * с тем же заводским номером ({@link MFC#reconnect(mfc.io.Transport)}).
+         * Вызывается из потока обмена данными РРГ
+         * @param mfc РРГ, связь с которым потеряна
+         * @return true, если связь восстановлена и состояние РРГ восстановлено
+         * @throws IOException при ошибке поиска
+         */
+        boolean relocate(MFC mfc) throws IOException;
+        
+    }
+    
+    /**
+     * Передача измеренного значения в поток обработки событий Swing. Хранится
+     * только последнее значение: если графический интерфейс не успел забрать
+     * предыдущее, оно заменяется новым и повторная задача не ставится в очередь
+     */
+    private static class Handoff implements Runnable {
+        
+        private final MFC mfc;
+        
+        /**
+         * Последнее измеренное значение расхода в виде битов double
+         */
+        private final AtomicLong latest;
+        
+        /**
+         * Признак того, что задача передачи уже стоит в очереди событий
+         */
+        private final AtomicBoolean pending;
+        
+        Handoff(MFC mfc) {
+            
+            this.mfc = mfc;
+            this.latest = new AtomicLong();
+            this.pending = new AtomicBoolean(false);
+            
+        }
+        
+        void offer(double flow) {
+            
+            this.latest.set(Double.doubleToRawLongBits(flow));
+            if (this.pending.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this);
+            }
+            
+        }
+        
+        @Override
+        public void run() {
+            
+            double flow;
+            
+            this.pending.set(false);
+            flow = Double.longBitsToDouble(this.latest.get());
+            this.mfc.publishFlow(flow);
+            
+        }
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,242 @@
+package mfc.model;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * История измерений расхода одного РРГ. Измерения хранятся в кольцевом буфере
+ * фиксированного размера в массивах примитивных типов, поэтому запись
+ * измерения не создаёт объектов, а буфер по умолчанию вмещает несколько часов
+ * опроса с периодом 100 мс.
+ * <p>
+ * Записывает измерения только поток обмена данными РРГ. Читатели не
+ * блокируют запись: они копируют измерения без блокировки и повторяют
+ * копирование, если во время него было записано новое измерение.
+ *
+ * @author Лейбо Д.
+ */
+public class FlowHistory {
+    
+    /**
+     * Количество хранимых измерений по умолчанию: 2^18, около 7 часов при
+     * опросе с периодом 100 мс, около 5 МБ
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+    
+    private final int capacity;
+    
+    private final int mask;
+    
+    /**
+     * Время измерения по {@link System#nanoTime()}
+     */
+    private final long[] times;
+    
+    /**
+     * Расход, %, или NaN при ошибке связи
+     */
+    private final float[] flows;
+    
+    /**
+     * Заданный расход, %, или NaN, если он неизвестен
+     */
+    private final float[] setpoints;
+    
+    /**
+     * Байт статуса РРГ без знака или -1, если он неизвестен. Хранится в int,
+     * так как все 256 значений байта статуса допустимы
+     */
+    private final int[] statuses;
+    
+    /**
+     * Количество записанных измерений за всё время
+     */
+    private long count;
+    
+    private final StampedLock lock;
+    
+    /**
+     * @param capacity количество хранимых измерений, округляется вверх до
+     * степени двойки
+     */
+    public FlowHistory(int capacity) {
+        
+        int size;
+        
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Wrong capacity: " + capacity);
+        }
+        size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size = size << 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.flows = new float[size];
+        this.setpoints = new float[size];
+        this.statuses = new int[size];
+        this.count = 0;
+        this.lock = new StampedLock();
+        
+    }
+    
+    public FlowHistory() {
+        
+        this(DEFAULT_CAPACITY);
+        
+    }
+    
+    public int getCapacity() {
+        
+        return this.capacity;
+        
+    }
+    
+    /**
+     * Добавляет измерение. Вызывается только из потока обмена данными РРГ
+     * @param time время измерения по {@link System#nanoTime()}
+     * @param flow расход, %, или NaN при ошибке связи
+     * @param setpoint заданный расход, %, или NaN
+     * @param status байт статуса РРГ без знака или -1
+     */
+    void add(long time, double flow, double setpoint, int status) {
+        
+        long stamp;
+        int i;
+        
+        stamp = this.lock.writeLock();
+        try {
+            i = (int) this.count & this.mask;
+            this.times[i] = time;
+            this.flows[i] = (float) flow;
+            this.setpoints[i] = (float) setpoint;
+            this.statuses[i] = status;
+            this.count++;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+        
+    }
+    
+    /**
+     * @return количество измерений, записанных за всё время. Номер следующего
+     * измерения
+     */
+    public long getCount() {
+        
+        long stamp;
+        long n;
+        
+        stamp = this.lock.tryOptimisticRead();
+        n = this.count;
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                n = this.count;
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+        
+        return n;
+        
+    }
+    
+    /**
+     * @return номер самого старого хранимого измерения
+     */
+    public long getFirstAvailable() {
+        
+        return Math.max(0, getCount() - this.capacity);
+        
+    }
+    
+    /**
+     * Копирует измерения, начиная с измерения с указанным номером. Количество
+     * копируемых измерений ограничено длиной самого короткого массива
+     * @param from номер первого копируемого измерения
+     * @param times массив для времени измерений
+     * @param flows массив для расхода
+     * @param setpoints массив для заданного расхода
+     * @param statuses массив для байтов статуса без знака или -1
+     * @return количество скопированных измерений или -1, если измерение с
+     * номером from уже вытеснено из буфера или номер отрицателен
+     */
+    public int read(long from, long[] times, float[] flows, float[] setpoints, int[] statuses) {
+        
+        long stamp;
+        long end;
+        int n;
+        
+        for (;;) {
+            stamp = this.lock.tryOptimisticRead();
+            end = this.count;
+            if (from < Math.max(0, end - this.capacity)) {
+                n = -1;
+            } else {
+                n = (int) Math.max(0, Math.min(end - from, minLength(times, flows, setpoints, statuses)));
+                copy(from, n, times, flows, setpoints, statuses);
+            }
+            if (this.lock.validate(stamp)) {
+                return n;
+            }
+        }
+        
+    }
+    
+    /**
+     * Копирует последние измерения в порядке их записи
+     * @param times массив для времени измерений
+     * @param flows массив для расхода
+     * @param setpoints массив для заданного расхода
+     * @param statuses массив для байтов статуса без знака или -1
+     * @return количество скопированных измерений
+     */
+    public int readLatest(long[] times, float[] flows, float[] setpoints, int[] statuses) {
+        
+        long stamp;
+        long end;
+        int n;
+        
+        for (;;) {
+            stamp = this.lock.tryOptimisticRead();
+            end = this.count;
+            n = (int) Math.min(Math.min(end, this.capacity),
+                    minLength(times, flows, setpoints, statuses));
+            copy(end - n, n, times, flows, setpoints, statuses);
+            if (this.lock.validate(stamp)) {
+                return n;
+            }
+        }
+        
+    }
+    
+    private void copy(long from, int n, long[] times, float[] flows, float[] setpoints,
+            int[] statuses) {
+        
+        int start;
+        int first;
+        
+        start = (int) from & this.mask;
+        first = Math.min(n, this.capacity - start);
+        System.arraycopy(this.times, start, times, 0, first);
+        System.arraycopy(this.flows, start, flows, 0, first);
+        System.arraycopy(this.setpoints, start, setpoints, 0, first);
+        System.arraycopy(this.statuses, start, statuses, 0, first);
+        if (first < n) {
+            System.arraycopy(this.times, 0, times, first, n - first);
+            System.arraycopy(this.flows, 0, flows, first, n - first);
+            System.arraycopy(this.setpoints, 0, setpoints, first, n - first);
+            System.arraycopy(this.statuses, 0, statuses, first, n - first);
+        }
+        
+    }
+    
+    private static int minLength(long[] times, float[] flows, float[] setpoints, int[] statuses) {
+        
+        return Math.min(Math.min(times.length, flows.length),
+                Math.min(setpoints.length, statuses.length));
+        
+    }
+    
+}
\ No newline at end of file
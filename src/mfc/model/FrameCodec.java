@@ -0,0 +1,289 @@
+package mfc.model;
+
+/**
+ * Кодирование и декодирование кадров протокола "Элточприбор-10М". Кадр состоит
+ * из 8 байт данных и 2 байт контрольной суммы (старший байт первым). Кадры
+ * постоянных команд вычисляются один раз, остальные записываются в буферы
+ * вызывающей стороны, поэтому методы класса не создают новых объектов.
+ *
+ * @author Лейбо Д.
+ */
+public final class FrameCodec {
+    
+    /**
+     * Длина кадра вместе с контрольной суммой
+     */
+    public static final int FRAME_LENGTH = 10;
+    
+    /**
+     * Количество байт кадра, по которым вычисляется контрольная сумма
+     */
+    public static final int DATA_LENGTH = 8;
+    
+    public static final int HANDSHAKE = 0x19;
+    
+    public static final int GET_STATUS = 0x01;
+    
+    public static final int GET_FLOW = 0x11;
+    
+    public static final int SET_VALVE = 0x20;
+    
+    public static final int SET_FLOW = 0x25;
+    
+    /**
+     * Адрес РРГ в последнем байте данных команды
+     */
+    public static final int ADDRESS = 0x01;
+    
+    /**
+     * Режимы клапана, закодированные битами 2 и 3 байта статуса
+     */
+    public static final int VALVE_CONTROL = 0;
+    
+    public static final int VALVE_OPENED = 1;
+    
+    public static final int VALVE_CLOSED = 2;
+    
+    private static final int SIGN_MASK = 0x8000;
+    
+    private static final int MAGNITUDE_MASK = 0x7FFF;
+    
+    static final byte[] HANDSHAKE_FRAME;
+    
+    static final byte[] GET_STATUS_FRAME;
+    
+    static final byte[] GET_FLOW_FRAME;
+    
+    static final byte[] OPEN_VALVE_FRAME;
+    
+    static final byte[] CLOSE_VALVE_FRAME;
+    
+    static final byte[] CONTROL_VALVE_FRAME;
+    
+    static {
+        
+        HANDSHAKE_FRAME = newFrame(HANDSHAKE, 0x00);
+        GET_STATUS_FRAME = newFrame(GET_STATUS, 0x00);
+        GET_FLOW_FRAME = newFrame(GET_FLOW, 0x00);
+        OPEN_VALVE_FRAME = newFrame(SET_VALVE, 0x01);
+        CLOSE_VALVE_FRAME = newFrame(SET_VALVE, 0x02);
+        CONTROL_VALVE_FRAME = newFrame(SET_VALVE, 0x00);
+        
+    }
+    
+    private FrameCodec() {
+    }
+    
+    /**
+     * @param frame буфер с кадром
+     * @param off смещение начала кадра
+     * @return сумма байт данных кадра
+     */
+    public static int checkSum(byte[] frame, int off) {
+        
+        int sum;
+        
+        sum = 0;
+        for (int i = 0; i < DATA_LENGTH; i++) {
+            sum = sum + (frame[off + i] & 0xFF);
+        }
+        
+        return sum;
+        
+    }
+    
+    /**
+     * Записывает контрольную сумму в последние два байта кадра
+     * @param frame буфер с кадром
+     * @param off смещение начала кадра
+     */
+    public static void putCheckSum(byte[] frame, int off) {
+        
+        int sum;
+        
+        sum = checkSum(frame, off);
+        frame[off + DATA_LENGTH] = (byte) (sum >>> 8);
+        frame[off + DATA_LENGTH + 1] = (byte) sum;
+        
+    }
+    
+    /**
+     * @param frame буфер с кадром
+     * @param off смещение начала кадра
+     * @return true, если контрольная сумма кадра верна
+     */
+    public static boolean checkSumIsOK(byte[] frame, int off) {
+        
+        return checkSum(frame, off) == readWord(frame, off + DATA_LENGTH);
+        
+    }
+    
+    /**
+     * Проверяет, что ответ относится к переданной команде: РРГ повторяет в
+     * ответе код команды (байт 0) и свой адрес (байт 7)
+     * @param response буфер с ответом
+     * @param roff смещение начала ответа
+     * @param command буфер с командой
+     * @param coff смещение начала команды
+     * @return true, если код команды и адрес совпадают
+     */
+    public static boolean answers(byte[] response, int roff, byte[] command, int coff) {
+        
+        return response[roff] == command[coff]
+                && response[roff + 7] == command[coff + 7];
+        
+    }
+    
+    /**
+     * Записывает в буфер команду задания расхода
+     * @param frame буфер для кадра
+     * @param off смещение начала кадра
+     * @param newFlow расход в сотых долях процента
+     */
+    public static void encodeSetFlow(byte[] frame, int off, int newFlow) {
+        
+        frame[off] = (byte) SET_FLOW;
+        frame[off + 1] = 0x00;
+        frame[off + 2] = (byte) (newFlow >>> 8);
+        frame[off + 3] = (byte) newFlow;
+        frame[off + 4] = 0x00;
+        frame[off + 5] = 0x00;
+        frame[off + 6] = 0x00;
+        frame[off + 7] = (byte) ADDRESS;
+        putCheckSum(frame, off);
+        
+    }
+    
+    /**
+     * @param frame ответ на команду чтения расхода
+     * @param off смещение начала кадра
+     * @return измеренный расход в процентах. Старший бит слова - знак, остальные
+     * 15 бит - модуль в сотых долях процента
+     */
+    public static double decodeFlow(byte[] frame, int off) {
+        
+        return decodeFlowWord(readWord(frame, off + 2));
+        
+    }
+    
+    /**
+     * @param word слово расхода из ответа РРГ: старший бит - знак, остальные
+     * 15 бит - модуль в сотых долях процента
+     * @return расход в процентах
+     */
+    public static double decodeFlowWord(int word) {
+        
+        double flow;
+        
+        flow = (word & MAGNITUDE_MASK) / 100.0;
+        if ((word & SIGN_MASK) != 0) {
+            flow = -flow;
+        }
+        
+        return flow;
+        
+    }
+    
+    /**
+     * Кодирует расход так, как его передаёт РРГ
+     * @param flow расход в процентах
+     * @return слово расхода или -1, если модуль расхода не помещается в 15 бит
+     */
+    public static int encodeFlowWord(double flow) {
+        
+        long magnitude;
+        
+        magnitude = Math.round(Math.abs(flow) * 100);
+        if (magnitude > MAGNITUDE_MASK) {
+            return -1;
+        }
+        
+        return flow < 0 && magnitude > 0 ? SIGN_MASK | (int) magnitude : (int) magnitude;
+        
+    }
+    
+    /**
+     * @param frame ответ на команду чтения расхода
+     * @param off смещение начала кадра
+     * @return заданный расход в процентах
+     */
+    public static double decodeSetFlow(byte[] frame, int off) {
+        
+        return decodeSetFlowWord(readWord(frame, off + 4));
+        
+    }
+    
+    /**
+     * @param word слово заданного расхода из ответа РРГ в сотых долях процента
+     * @return заданный расход в процентах
+     */
+    public static double decodeSetFlowWord(int word) {
+        
+        return (word & 0xFFFF) / 100.0;
+        
+    }
+    
+    /**
+     * @param frame ответ РРГ
+     * @param off смещение начала кадра
+     * @return байт статуса РРГ
+     */
+    public static int decodeStatus(byte[] frame, int off) {
+        
+        return frame[off + 1] & 0xFF;
+        
+    }
+    
+    /**
+     * @param status байт статуса РРГ
+     * @return режим клапана: {@link #VALVE_CONTROL}, {@link #VALVE_OPENED} или
+     * {@link #VALVE_CLOSED}. Одновременно установленные биты 2 и 3 трактуются
+     * как открытый клапан
+     */
+    public static int valveMode(int status) {
+        
+        int bits;
+        
+        bits = (status >>> 2) & 0x03;
+        if (bits == 0x00) {
+            return VALVE_CONTROL;
+        } else if (bits == 0x02) {
+            return VALVE_CLOSED;
+        } else {
+            return VALVE_OPENED;
+        }
+        
+    }
+    
+    /**
+     * @param frame ответ на команду установления связи
+     * @param off смещение начала кадра
+     * @return заводской номер РРГ
+     */
+    public static int decodeSerialNum(byte[] frame, int off) {
+        
+        return readWord(frame, off + 5);
+        
+    }
+    
+    private static int readWord(byte[] frame, int off) {
+        
+        return ((frame[off] & 0xFF) << 8) | (frame[off + 1] & 0xFF);
+        
+    }
+    
+    private static byte[] newFrame(int command, int argument) {
+        
+        byte[] frame;
+        
+        frame = new byte[FRAME_LENGTH];
+        frame[0] = (byte) command;
+        frame[2] = (byte) argument;
+        frame[7] = (byte) ADDRESS;
+        putCheckSum(frame, 0);
+        
+        return frame;
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,197 @@
+package mfc.model;
+
+import java.util.Formatter;
+import java.util.Locale;
+
+/**
+ * Журнал последних переданных и принятых кадров одного РРГ. Кадры хранятся в
+ * кольцевом буфере фиксированного размера в исходном виде и преобразуются в
+ * текст только по запросу, например после сбоя связи, поэтому запись кадра
+ * сводится к копированию нескольких байт.
+ *
+ * @author Лейбо Д.
+ */
+public class FrameTrace {
+    
+    /**
+     * Количество кадров в журнале по умолчанию
+     */
+    public static final int DEFAULT_CAPACITY = 128;
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private final int capacity;
+    
+    /**
+     * Время записи кадров по {@link System#nanoTime()}
+     */
+    private final long[] times;
+    
+    /**
+     * Байты кадров, по FRAME_LENGTH байт на кадр
+     */
+    private final byte[] frames;
+    
+    /**
+     * Количество фактически переданных или принятых байт кадра
+     */
+    private final byte[] lengths;
+    
+    /**
+     * true - кадр передан РРГ, false - принят от РРГ
+     */
+    private final boolean[] transmitted;
+    
+    /**
+     * Общее количество записанных кадров
+     */
+    private long count;
+    
+    public FrameTrace() {
+        
+        this(DEFAULT_CAPACITY);
+        
+    }
+    
+    /**
+     * @param capacity количество хранимых кадров
+     */
+    public FrameTrace(int capacity) {
+        
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.frames = new byte[capacity * FrameCodec.FRAME_LENGTH];
+        this.lengths = new byte[capacity];
+        this.transmitted = new boolean[capacity];
+        this.count = 0;
+        
+    }
+    
+    /**
+     * Записывает переданный РРГ кадр
+     * @param frame буфер с кадром
+     * @param off смещение начала кадра
+     * @param len длина кадра
+     */
+    public void transmitted(byte[] frame, int off, int len) {
+        
+        record(true, frame, off, len);
+        
+    }
+    
+    /**
+     * Записывает принятый от РРГ кадр. Неполный кадр записывается как есть
+     * @param frame буфер с кадром
+     * @param off смещение начала кадра
+     * @param len количество принятых байт
+     */
+    public void received(byte[] frame, int off, int len) {
+        
+        record(false, frame, off, len);
+        
+    }
+    
+    private synchronized void record(boolean tx, byte[] frame, int off, int len) {
+        
+        int slot;
+        
+        len = Math.max(0, Math.min(len, FrameCodec.FRAME_LENGTH));
+        slot = (int) (this.count % this.capacity);
+        this.times[slot] = System.nanoTime();
+        System.arraycopy(frame, off, this.frames, slot * FrameCodec.FRAME_LENGTH, len);
+        this.lengths[slot] = (byte) len;
+        this.transmitted[slot] = tx;
+        this.count = this.count + 1;
+        
+    }
+    
+    /**
+     * @return общее количество записанных кадров
+     */
+    public synchronized long getCount() {
+        
+        return this.count;
+        
+    }
+    
+    /**
+     * Очищает журнал
+     */
+    public synchronized void clear() {
+        
+        this.count = 0;
+        
+    }
+    
+    /**
+     * @return все хранимые кадры в текстовом виде
+     */
+    public String dump() {
+        
+        return dump(this.capacity);
+        
+    }
+    
+    /**
+     * Преобразует последние кадры в текст. Время указывается в миллисекундах
+     * относительно последнего кадра
+     * @param frames максимальное количество кадров
+     * @return по одной строке на кадр, от старых к новым
+     */
+    public synchronized String dump(int frames) {
+        
+        StringBuilder sb;
+        Formatter f;
+        long first;
+        long last;
+        int slot;
+        
+        if (this.count == 0) {
+            return "";
+        }
+        sb = new StringBuilder();
+        f = new Formatter(sb, Locale.US);
+        first = Math.max(0, this.count - Math.min(frames, this.capacity));
+        last = this.times[(int) ((this.count - 1) % this.capacity)];
+        for (long i = first; i < this.count; i++) {
+            slot = (int) (i % this.capacity);
+            f.format("%+10.3f ms %s ", (this.times[slot] - last) / 1e6,
+                    this.transmitted[slot] ? "TX" : "RX");
+            appendHex(sb, this.frames, slot * FrameCodec.FRAME_LENGTH, this.lengths[slot]);
+            sb.append('\n');
+        }
+        
+        return sb.toString();
+        
+    }
+    
+    /**
+     * @param frame буфер с кадром
+     * @param off смещение начала кадра
+     * @param len количество байт
+     * @return байты кадра в шестнадцатеричном виде через пробел
+     */
+    public static String toHex(byte[] frame, int off, int len) {
+        
+        StringBuilder sb;
+        
+        sb = new StringBuilder(len * 3);
+        appendHex(sb, frame, off, len);
+        
+        return sb.toString();
+        
+    }
+    
+    private static void appendHex(StringBuilder sb, byte[] frame, int off, int len) {
+        
+        for (int i = 0; i < len; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(HEX_DIGITS[(frame[off + i] >>> 4) & 0x0F]);
+            sb.append(HEX_DIGITS[frame[off + i] & 0x0F]);
+        }
+        
+    }
+    
+}
\ No newline at end of file
@@ -1,141 +1,227 @@
 package mfc.model;
 
-import gnu.io.CommPort;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.util.Formatter;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.Timer;
+import mfc.io.Transport;
 
-public class MFC implements ActionListener {
+public class MFC {
     
-    private String commID;
+    private volatile String commID;
     
     private String serialNum;
     
-    private BufferedInputStream in;
-    
-    private BufferedOutputStream out;
-    
-    private CommPort com;
+    /**
+     * Канал связи. Заменяется при {@link #reconnect(Transport) переносе} РРГ на
+     * другой порт под блокировкой lock
+     */
+    private Transport transport;
     
     private final Object lock;
     
     private final PropertyChangeSupport propChSup;
     
-    private final Timer timer;
+    /**
+     * Единственный поток, выполняющий обмен данными с РРГ: опрос расхода и
+     * асинхронные команды
+     */
+    private final ScheduledExecutorService worker;
+    
+    private final byte[] setFlowFrame;
+    
+    private final byte[] commandBuffer;
+    
+    private final byte[] responseBuffer;
+    
+    /**
+     * Количество байт, принятых при последнем обмене
+     */
+    private int responseLength;
+    
+    private volatile boolean pipelined;
+    
+    private final byte[][] single;
+    
+    /**
+     * Последний подтверждённый РРГ байт статуса или -1, если он неизвестен
+     */
+    private volatile int status;
+    
+    /**
+     * Режим клапана, соответствующий байту статуса
+     */
+    private volatile String valveStatus;
+    
+    /**
+     * Последний подтверждённый РРГ заданный расход, %
+     */
+    private volatile double setpoint;
+    
+    /**
+     * Время подтверждения статуса по System.nanoTime() или 0, если статус
+     * неизвестен
+     */
+    private volatile long statusTime;
+    
+    /**
+     * Время, в течение которого подтверждённый статус считается актуальным, нс
+     */
+    private volatile long statusMaxAge;
+    
+    private final FrameTrace trace;
+    
+    /**
+     * История опроса расхода
+     */
+    private final FlowHistory history;
+    
+    /**
+     * Время ожидания ответов по измеренному времени обмена
+     */
+    private final RoundTripTracker roundTrips;
+    
+    /**
+     * true после сбоя связи, до первого успешного ответа РРГ
+     */
+    private boolean faulted;
+    
+    private volatile long lastResponseTime;
+    
+    /**
+     * Количество байт, отброшенных при поиске начала ответа и перед передачей
+     * команд
+     */
+    private volatile long discardedBytes;
+    
+    /**
+     * Количество ответов с верной контрольной суммой, не относящихся к
+     * переданной команде
+     */
+    private volatile long mismatchedFrames;
+    
+    private volatile RetryPolicy retryPolicy;
+    
+    /**
+     * true, если ответ на последнюю команду не получен или искажён
+     */
+    private volatile boolean responseFailed;
+    
+    /**
+     * Количество повторов по кодам команд
+     */
+    private final AtomicLongArray retries;
+    
+    /**
+     * Количество команд, выполненных после повторов, по кодам команд
+     */
+    private final AtomicLongArray recovered;
+    
+    /**
+     * Вызывается после команд, изменяющих расход через РРГ
+     */
+    private volatile Runnable transientListener;
     
     private static final Logger log;
     
-    private static final int[] GET_FLOW_COMMAND;
+    private static final String[] VALVE_STATUSES = {"control", "opened", "closed"};
+    
+    /**
+     * Верхняя граница времени ожидания ответа РРГ по умолчанию, мс. Используется,
+     * пока время обмена не измерено
+     */
+    private static final int RESPONSE_TIMEOUT = 500;
     
-    private static final int[] CLOSE_VALVE_COMMAND;
+    /**
+     * Нижняя граница времени ожидания ответа РРГ по умолчанию, мс
+     */
+    private static final int MIN_RESPONSE_TIMEOUT = 20;
     
-    private static final int[] OPEN_VALVE_COMMAND;
+    /**
+     * Время тишины на линии, после которого повторяется команда, мс
+     */
+    private static final int RESYNC_QUIET_TIME = 5;
     
-    private static final int[] CONTROL_VALVE_COMMAND;
+    /**
+     * Максимальное количество команд, передаваемых одной записью в порт
+     */
+    private static final int MAX_PIPELINE = 4;
     
-    private static final int[] SET_NEW_FLOW_COMMAND;
+    /**
+     * Время актуальности подтверждённого статуса РРГ по умолчанию, мс
+     */
+    private static final long DEFAULT_STATUS_MAX_AGE = 10000;
     
-    private static final int[] GET_STATUS_COMMAND;
+    /**
+     * Поток, отменяющий асинхронные команды по истечении времени ожидания
+     */
+    private static final ScheduledExecutorService DEADLINES;
     
-    private static final int[] HANDSHAKE_COMMAND;
+    /**
+     * Время ожидания выполнения асинхронной команды по умолчанию, мс
+     */
+    public static final long DEFAULT_COMMAND_TIMEOUT = 5000;
     
     static {
         
         log = Logger.getLogger(MFC.class.getName());
         
-        GET_FLOW_COMMAND = new int[8];
-        GET_FLOW_COMMAND[0] = 0x11;
-        GET_FLOW_COMMAND[1] = 0x00;
-        GET_FLOW_COMMAND[2] = 0x00;
-        GET_FLOW_COMMAND[3] = 0x00;
-        GET_FLOW_COMMAND[4] = 0x00;
-        GET_FLOW_COMMAND[5] = 0x00;
-        GET_FLOW_COMMAND[6] = 0x00;
-        GET_FLOW_COMMAND[7] = 0x01;
-        
-        CLOSE_VALVE_COMMAND = new int[8];
-        CLOSE_VALVE_COMMAND[0] = 0x20;
-        CLOSE_VALVE_COMMAND[1] = 0x00;
-        CLOSE_VALVE_COMMAND[2] = 0x02;
-        CLOSE_VALVE_COMMAND[3] = 0x00;
-        CLOSE_VALVE_COMMAND[4] = 0x00;
-        CLOSE_VALVE_COMMAND[5] = 0x00;
-        CLOSE_VALVE_COMMAND[6] = 0x00;
-        CLOSE_VALVE_COMMAND[7] = 0x01;
-        
-        GET_STATUS_COMMAND = new int[8];
-        GET_STATUS_COMMAND[0] = 0x01;
-        GET_STATUS_COMMAND[1] = 0x00;
-        GET_STATUS_COMMAND[2] = 0x00;
-        GET_STATUS_COMMAND[3] = 0x00;
-        GET_STATUS_COMMAND[4] = 0x00;
-        GET_STATUS_COMMAND[5] = 0x00;
-        GET_STATUS_COMMAND[6] = 0x00;
-        GET_STATUS_COMMAND[7] = 0x01;
-        
-        OPEN_VALVE_COMMAND = new int[8];
-        OPEN_VALVE_COMMAND[0] = 0x20;
-        OPEN_VALVE_COMMAND[1] = 0x00;
-        OPEN_VALVE_COMMAND[2] = 0x01;
-        OPEN_VALVE_COMMAND[3] = 0x00;
-        OPEN_VALVE_COMMAND[4] = 0x00;
-        OPEN_VALVE_COMMAND[5] = 0x00;
-        OPEN_VALVE_COMMAND[6] = 0x00;
-        OPEN_VALVE_COMMAND[7] = 0x01;
-        
-        CONTROL_VALVE_COMMAND = new int[8];
-        CONTROL_VALVE_COMMAND[0] = 0x20;
-        CONTROL_VALVE_COMMAND[1] = 0x00;
-        CONTROL_VALVE_COMMAND[2] = 0x00;
-        CONTROL_VALVE_COMMAND[3] = 0x00;
-        CONTROL_VALVE_COMMAND[4] = 0x00;
-        CONTROL_VALVE_COMMAND[5] = 0x00;
-        CONTROL_VALVE_COMMAND[6] = 0x00;
-        CONTROL_VALVE_COMMAND[7] = 0x01;
-        
-        SET_NEW_FLOW_COMMAND = new int[8];
-        SET_NEW_FLOW_COMMAND[0] = 0x25;
-        SET_NEW_FLOW_COMMAND[1] = 0x00;
-        SET_NEW_FLOW_COMMAND[2] = 0x00;
-        SET_NEW_FLOW_COMMAND[3] = 0x00;
-        SET_NEW_FLOW_COMMAND[4] = 0x00;
-        SET_NEW_FLOW_COMMAND[5] = 0x00;
-        SET_NEW_FLOW_COMMAND[6] = 0x00;
-        SET_NEW_FLOW_COMMAND[7] = 0x01;
-        
-        HANDSHAKE_COMMAND = new int[8];
-        HANDSHAKE_COMMAND[0] = 0x19;
-        HANDSHAKE_COMMAND[1] = 0x00;
-        HANDSHAKE_COMMAND[2] = 0x00;
-        HANDSHAKE_COMMAND[3] = 0x00;
-        HANDSHAKE_COMMAND[4] = 0x00;
-        HANDSHAKE_COMMAND[5] = 0x00;
-        HANDSHAKE_COMMAND[6] = 0x00;
-        HANDSHAKE_COMMAND[7] = 0x01;
-    }
-    
-    public MFC(CommPort com, BufferedInputStream in, BufferedOutputStream out) 
-            throws IOException {
+        DEADLINES = new ScheduledThreadPoolExecutor(1, daemonThreads("MFC-deadlines"));
+        
+    }
+    
+    /**
+     * Устанавливает связь с РРГ через открытый канал и закрывает клапан
+     * @param transport открытый канал связи с РРГ
+     * @throws IOException если РРГ не отвечает или клапан не удалось закрыть
+     */
+    public MFC(Transport transport) throws IOException {
         
         boolean closed;
         boolean successful;
         String ID;
         
-        this.in = in;
-        this.out = out;
-        this.com = com;
-        ID = (com.getName()).substring(com.getName().indexOf("COM"));
+        this.transport = transport;
+        ID = transport.getName();
         this.commID = ID;
         this.lock = new Object();
         this.propChSup = new PropertyChangeSupport(this);
+        this.setFlowFrame = new byte[FrameCodec.FRAME_LENGTH];
+        this.commandBuffer = new byte[MAX_PIPELINE * FrameCodec.FRAME_LENGTH];
+        this.responseBuffer = new byte[MAX_PIPELINE * FrameCodec.FRAME_LENGTH];
+        this.pipelined = true;
+        this.single = new byte[1][];
+        this.status = -1;
+        this.valveStatus = null;
+        this.setpoint = Double.NaN;
+        this.statusTime = 0;
+        this.statusMaxAge = DEFAULT_STATUS_MAX_AGE * 1000000L;
+        this.lastResponseTime = -1;
+        this.trace = new FrameTrace();
+        this.history = new FlowHistory();
+        this.roundTrips = new RoundTripTracker(MIN_RESPONSE_TIMEOUT * 1000L,
+                RESPONSE_TIMEOUT * 1000L);
+        this.faulted = false;
+        this.discardedBytes = 0;
+        this.mismatchedFrames = 0;
+        this.retryPolicy = new RetryPolicy();
+        this.responseFailed = false;
+        this.retries = new AtomicLongArray(256);
+        this.recovered = new AtomicLongArray(256);
         
         log.fine("Creating MFC at " + ID);
         
@@ -149,8 +235,8 @@ public class MFC implements ActionListener {
             log.warning(this.serialNum + ": failed to close the valve!");
             throw new IOException(this.serialNum + ": failed to close the valve!");
         }
-        this.timer = new Timer(2000, this);
-        log.finer(this.serialNum + ": initialized and started timer");
+        this.worker = new ScheduledThreadPoolExecutor(1, daemonThreads("MFC-" + ID));
+        log.finer(this.serialNum + ": initialized");
         
     }
     
@@ -170,6 +256,16 @@ public class MFC implements ActionListener {
         
     }
     
+    /**
+     * @return время ожидания последнего ответа РРГ в микросекундах или -1, если
+     * обмена ещё не было
+     */
+    public long getLastResponseTime() {
+        
+        return this.lastResponseTime;
+        
+    }
+    
 //    public double getCurrentFlow() throws IOException {
 //        
 //        double flow;
@@ -220,19 +316,310 @@ public class MFC implements ActionListener {
         
     }
     
+    /**
+     * @return последний подтверждённый РРГ байт статуса или -1, если он неизвестен
+     */
+    public int getStatus() {
+        
+        return this.status;
+        
+    }
+    
+    /**
+     * @return последний подтверждённый режим клапана: "control", "opened",
+     * "closed" или null, если он неизвестен
+     */
+    public String getValveStatus() {
+        
+        return this.valveStatus;
+        
+    }
+    
+    /**
+     * @return последний подтверждённый заданный расход в процентах или
+     * Double.NaN, если он неизвестен
+     */
+    public double getSetpoint() {
+        
+        return this.setpoint;
+        
+    }
+    
+    /**
+     * Задаёт время, в течение которого подтверждённый статус РРГ используется
+     * без повторного запроса. 0 - статус запрашивается перед каждой командой
+     * @param millis время актуальности статуса, мс
+     */
+    public void setStatusMaxAge(long millis) {
+        
+        this.statusMaxAge = millis * 1000000L;
+        
+    }
+    
+    /**
+     * Включает или выключает конвейерную передачу команд. Если РРГ или
+     * преобразователь интерфейса теряет команды, переданные подряд, конвейер
+     * следует выключить
+     * @param pipelined true - составные операции передаются одной записью
+     */
+    public void setPipelined(boolean pipelined) {
+        
+        log.fine(this.serialNum + ": pipelined commands " + (pipelined ? "on" : "off"));
+        
+        this.pipelined = pipelined;
+        
+    }
+    
+    /**
+     * Задаёт границы времени ожидания ответа РРГ. Внутри границ время ожидания
+     * вычисляется для каждой команды по измеренному времени обмена
+     * @param floorMillis нижняя граница, мс
+     * @param ceilingMillis верхняя граница, мс. Используется, пока время обмена
+     * не измерено
+     */
+    public void setResponseTimeoutLimits(long floorMillis, long ceilingMillis) {
+        
+        log.fine(this.serialNum + ": response timeout limits " + floorMillis
+                + ".." + ceilingMillis + " ms");
+        
+        synchronized (lock) {
+            this.roundTrips.setLimits(floorMillis * 1000, ceilingMillis * 1000);
+        }
+        
+    }
+    
+    /**
+     * @param command код команды, например {@link FrameCodec#GET_FLOW}
+     * @return текущее время ожидания ответа на команду, мкс
+     */
+    public long getResponseTimeout(int command) {
+        
+        synchronized (lock) {
+            return this.roundTrips.timeout(command);
+        }
+        
+    }
+    
+    /**
+     * Задаёт количество попыток выполнения команд
+     * @param retryPolicy политика повторов
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        
+        this.retryPolicy = retryPolicy;
+        
+    }
+    
+    public RetryPolicy getRetryPolicy() {
+        
+        return this.retryPolicy;
+        
+    }
+    
+    /**
+     * @param command код команды
+     * @return количество повторов команды из-за неполученных или искажённых
+     * ответов
+     */
+    public long getRetryCount(int command) {
+        
+        return this.retries.get(command & 0xFF);
+        
+    }
+    
+    /**
+     * @param command код команды
+     * @return количество выполнений команды, потребовавших повторов
+     */
+    public long getRecoveredCount(int command) {
+        
+        return this.recovered.get(command & 0xFF);
+        
+    }
+    
+    /**
+     * @return история опроса расхода
+     */
+    public FlowHistory getHistory() {
+        
+        return this.history;
+        
+    }
+    
+    /**
+     * @return количество байт, отброшенных при восстановлении границ кадров
+     */
+    public long getDiscardedBytes() {
+        
+        return this.discardedBytes;
+        
+    }
+    
+    /**
+     * @return количество отброшенных ответов, не относящихся к переданной команде
+     */
+    public long getMismatchedFrames() {
+        
+        return this.mismatchedFrames;
+        
+    }
+    
+    /**
+     * @return последние переданные и принятые кадры в текстовом виде
+     */
+    public String dumpTrace() {
+        
+        return this.trace.dump();
+        
+    }
+    
+    /**
+     * Асинхронно закрывает клапан РРГ
+     * @return результат команды: true, если РРГ подтвердил закрытие клапана
+     */
+    public CompletableFuture<Boolean> closeValveAsync() {
+        
+        return submit("close valve", () -> closeMFCValve(), DEFAULT_COMMAND_TIMEOUT);
+        
+    }
+    
+    /**
+     * Асинхронно открывает клапан РРГ
+     * @return результат команды: true, если РРГ подтвердил открытие клапана
+     */
+    public CompletableFuture<Boolean> openValveAsync() {
+        
+        return submit("open valve", () -> openMFCValve(), DEFAULT_COMMAND_TIMEOUT);
+        
+    }
+    
+    /**
+     * Асинхронно переводит клапан РРГ в режим регулирования
+     * @return результат команды: true, если РРГ подтвердил режим регулирования
+     */
+    public CompletableFuture<Boolean> setValveInControlModeAsync() {
+        
+        return submit("set valve in control mode", () -> setMFCValveInControlMode(), DEFAULT_COMMAND_TIMEOUT);
+        
+    }
+    
+    /**
+     * Асинхронно задаёт расход
+     * @param flowInPercents расход в процентах от максимального
+     * @return результат команды: true, если РРГ подтвердил заданный расход
+     */
+    public CompletableFuture<Boolean> setNewFlowAsync(double flowInPercents) {
+        
+        return setNewFlowAsync(flowInPercents, DEFAULT_COMMAND_TIMEOUT);
+        
+    }
+    
+    /**
+     * Асинхронно задаёт расход
+     * @param flowInPercents расход в процентах от максимального
+     * @param timeout время ожидания выполнения команды, мс
+     * @return результат команды: true, если РРГ подтвердил заданный расход
+     */
+    public CompletableFuture<Boolean> setNewFlowAsync(final double flowInPercents, long timeout) {
+        
+        return submit("set new flow", () -> setMFCNewFlow(flowInPercents), timeout);
+        
+    }
+    
+    /**
+     * Ставит команду в очередь потока обмена данными с РРГ. Если время ожидания
+     * истекло или результат отменён до начала выполнения, команда не передаётся.
+     * Начатый обмен не прерывается, чтобы не нарушить последовательность кадров,
+     * его результат в этом случае отбрасывается
+     * @param name название команды для сообщений
+     * @param command команда
+     * @param timeout время ожидания выполнения команды, мс
+     * @return результат команды
+     */
+    private <T> CompletableFuture<T> submit(final String name, final Callable<T> command,
+            long timeout) {
+        
+        final CompletableFuture<T> result;
+        final Future<?> task;
+        final ScheduledFuture<?> deadline;
+        
+        result = new CompletableFuture<T>();
+        try {
+            task = this.worker.submit(() -> {
+                if (result.isDone()) {
+                    log.fine(this.serialNum + ": " + name + " was cancelled before start");
+                    return;
+                }
+                try {
+                    result.complete(command.call());
+                } catch (Exception ex) {
+                    result.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(new IOException(this.serialNum
+                    + ": connection with MFC is closed", ex));
+            return result;
+        }
+        deadline = DEADLINES.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(this.serialNum
+                    + ": " + name + " timed out"))) {
+                log.warning(this.serialNum + ": " + name + " timed out");
+                task.cancel(false);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        result.whenComplete((value, ex) -> {
+            deadline.cancel(false);
+            if (result.isCancelled()) {
+                task.cancel(false);
+            }
+        });
+        
+        return result;
+        
+    }
+    
+    private static ThreadFactory daemonThreads(final String name) {
+        
+        return (Runnable r) -> {
+            Thread thread;
+            thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+        
+    }
+    
+    /**
+     * @return поток обмена данными с РРГ
+     */
+    ScheduledExecutorService getWorker() {
+        
+        return this.worker;
+        
+    }
+    
     public void close() throws IOException {
         
         log.fine(this.serialNum + ": closing connection with MFC");
         
+        this.worker.shutdown();
+        try {
+            if (!this.worker.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.warning(this.serialNum + ": pending commands were not completed in time");
+                this.worker.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
         synchronized (lock) {
             try {
                 this.closeMFCValve();
             } catch (IOException e) {
                 log.warning(this.serialNum + ": failed to close MFC valve!");
             } finally {
-                this.in.close();
-                this.out.close();
-                this.com.close();
+                this.transport.close();
             }
         }
         
@@ -250,33 +637,62 @@ public class MFC implements ActionListener {
         
     }
 
-    private double getFlowFromMFC() throws IOException {
+    double getFlowFromMFC() throws IOException {
         
         double flow;
-        int[] response;
+        
+        for (int attempt = 1; ; attempt++) {
+            this.responseFailed = false;
+            try {
+                flow = getFlowOnce();
+            } catch (IOException ex) {
+                if (attempt >= this.retryPolicy.getAttempts(FrameCodec.GET_FLOW)) {
+                    throw ex;
+                }
+                this.responseFailed = true;
+                flow = Double.NaN;
+            }
+            if (!Double.isNaN(flow)) {
+                if (attempt > 1) {
+                    this.recovered.incrementAndGet(FrameCodec.GET_FLOW);
+                }
+                return flow;
+            }
+            if (!prepareRetry(FrameCodec.GET_FLOW, attempt)) {
+                return flow;
+            }
+        }
+        
+    }
+
+    private double getFlowOnce() throws IOException {
+        
+        double flow;
+        byte[] response;
         boolean checkSumIsOK;
         
-        log.finer(this.serialNum + ": getting flow from MFC...");
+        if (log.isLoggable(Level.FINER)) {
+            log.finer(this.serialNum + ": getting flow from MFC...");
+        }
         
         synchronized (lock) {
-            sendCommandToMFC(MFC.GET_FLOW_COMMAND);
-            response = getMFCResponse();
-            
-            Formatter f;
-            f = new Formatter(Locale.US);
-            for (int i = 0; i < response.length; i++) {
-                f.format("%02x\t", response[i]);
-            }
-            
-            checkSumIsOK = checkCheckSum(response);
+            response = exchange(FrameCodec.GET_FLOW_FRAME);
+            checkSumIsOK = checkCheckSum(response, 0);
             if (checkSumIsOK) {
-                log.finest(this.serialNum + ": check sum of returned message is ok");
-                flow = decodeFlow(response);
+                if (log.isLoggable(Level.FINEST)) {
+                    log.finest(this.serialNum + ": check sum of returned message is ok");
+                }
+                flow = decodeFlow(response, 0);
+                updateFromFlowResponse(response, 0);
+                this.faulted = false;
             } else {
                 log.severe(this.serialNum + ": error in check sum! "
-                        + "Bytes available to read from BufferedInputStream: "
-                        + in.available() + ". "
-                                + "Response from MFC: " + f.toString());
+                        + "Response from MFC: " + describeResponse(response, 0));
+                if (!this.faulted) {
+                    // the frames leading to the first failure are the interesting ones
+                    log.warning(this.serialNum + ": recent frames:\n" + this.trace.dump());
+                    this.faulted = true;
+                }
                 flow = Double.NaN;
             }
         }
@@ -285,133 +701,228 @@ public class MFC implements ActionListener {
         
     }
 
-    private void sendCommandToMFC(int[] command) throws IOException {
-        
-        int[] checkSum;
+    /**
+     * Передаёт команды РРГ и принимает ответы на них. В конвейерном режиме все
+     * команды передаются одной записью в порт, и РРГ отвечает на них по порядку,
+     * поэтому составная операция занимает примерно один цикл обмена. Иначе
+     * каждая следующая команда передаётся после ответа на предыдущую
+     * @param commands кадры команд
+     * @return буфер, в котором ответ на i-ю команду начинается с
+     * i * FrameCodec.FRAME_LENGTH. Приём прекращается на первом неполном ответе
+     * @throws IOException при ошибке обмена данными
+     */
+    private byte[] exchange(byte[]... commands) throws IOException {
+        
+        return exchange(commands, commands.length);
         
-        Formatter f;
-        f = new Formatter(Locale.US);
-        for (int i = 0; i < command.length; i++) {
-            f.format("%02x\t", command[i]);
-        }
-        log.finest(this.serialNum + ": sending command to MFC: " + f.toString());
+    }
+
+    /**
+     * Передаёт одну команду РРГ и принимает ответ на неё без создания массива
+     * аргументов
+     */
+    private byte[] exchange(byte[] command) throws IOException {
         
-        checkSum = calculateCheckSum(command);
+        this.single[0] = command;
         
-        for (int i = 0; i < command.length; i++) {
-            this.out.write(command[i]);
-        }
-        for (int i = 0; i < checkSum.length; i++) {
-            this.out.write(checkSum[i]);
-        }
-        out.flush();
+        return exchange(this.single, 1);
         
     }
 
-    private int[] calculateCheckSum(int[] command) {
+    private byte[] exchange(byte[][] commands, int n) throws IOException {
         
-        int[] checkSum;
-        int sum;
+        long start;
         
+        if (n > MAX_PIPELINE) {
+            throw new IllegalArgumentException("Too many commands: " + n);
+        }
         
+        start = System.nanoTime();
+        this.responseLength = 0;
+        try {
+            transfer(commands, n);
+        } catch (IOException ex) {
+            this.statusTime = 0;
+            throw ex;
+        }
+        this.lastResponseTime = (System.nanoTime() - start) / 1000;
         
-        checkSum = new int[2];
-        sum = 0x00;
+        return this.responseBuffer;
         
-        for (int i = 0; i < 8; i++) {
-            sum = sum + command[i];
+    }
+
+    private void transfer(byte[][] commands, int n) throws IOException {
+        
+        drainStaleBytes();
+        if (this.pipelined) {
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(commands[i], 0, this.commandBuffer,
+                        i * FrameCodec.FRAME_LENGTH, FrameCodec.FRAME_LENGTH);
+                logCommand(commands[i]);
+            }
+            this.transport.write(this.commandBuffer, 0, n * FrameCodec.FRAME_LENGTH);
+            // only the first response follows its own command, later ones also
+            // wait for the preceding responses and are not timed
+            for (int i = 0; i < n; i++) {
+                if (!readResponse(i, commands[i], i == 0)) {
+                    break;
+                }
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                if (i > 0) {
+                    drainStaleBytes();
+                }
+                logCommand(commands[i]);
+                this.transport.write(commands[i], 0, FrameCodec.FRAME_LENGTH);
+                if (!readResponse(i, commands[i], true)) {
+                    break;
+                }
+            }
         }
         
-        checkSum[0] = (int)(sum / 256);
-        checkSum[1] = sum % 256;
+    }
+
+    private void logCommand(byte[] frame) {
         
-        Formatter f;
-        f = new Formatter(Locale.US);
-        for (int i = 0; i < checkSum.length; i++) {
-            f.format("%02x\t", checkSum[i]);
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(this.serialNum + ": sending command to MFC: "
+                    + FrameTrace.toHex(frame, 0, FrameCodec.FRAME_LENGTH));
         }
-        log.finest(this.serialNum + ": calculating check sum for command: " + f.toString());
         
-        return checkSum;
+        this.trace.transmitted(frame, 0, FrameCodec.FRAME_LENGTH);
         
     }
 
-    private int[] getMFCResponse() throws IOException {
-        
-        int[] response;
+    /**
+     * Отбрасывает байты, принятые до передачи команды: опоздавшие ответы на
+     * предыдущие команды и помехи на линии
+     */
+    private void drainStaleBytes() throws IOException {
+        
+        int drained;
+        
+        drained = this.transport.drain();
+        if (drained > 0) {
+            this.discardedBytes = this.discardedBytes + drained;
+            log.fine(this.serialNum + ": discarded " + drained + " stale bytes");
+        }
         
-        log.finest(this.serialNum + ": getting MFC response...");
+    }
+
+    /**
+     * Принимает ответ на очередную команду. Если принятые байты не образуют
+     * кадр с верной контрольной суммой, окно сдвигается на один байт, пока
+     * кадр не будет найден или не истечёт время ожидания, поэтому после сбоя
+     * на линии теряется только один ответ. Кадр с верной контрольной суммой,
+     * не относящийся к команде (опоздавший ответ на другую команду),
+     * отбрасывается целиком
+     * @param index номер команды в конвейере
+     * @param command команда, ответ на которую ожидается
+     * @param timed true, если ответ ожидается сразу после передачи команды и
+     * время его ожидания учитывается в измерениях времени обмена
+     * @return true, если ответ принят полностью
+     * @throws IOException при ошибке чтения
+     */
+    private boolean readResponse(int index, byte[] command, boolean timed)
+            throws IOException {
         
-        long millis = System.currentTimeMillis();
-        while (in.available() < 10) { // wait for mfc to send the responce
-            if (System.currentTimeMillis() - millis > 500) {
+        int off;
+        int count;
+        int n;
+        int skipped;
+        long start;
+        long deadline;
+        
+        off = index * FrameCodec.FRAME_LENGTH;
+        start = System.nanoTime();
+        deadline = start + this.roundTrips.timeout(command[0]) * 1000L;
+        count = this.transport.read(this.responseBuffer, off, FrameCodec.FRAME_LENGTH, deadline);
+        count = Math.max(count, 0);
+        skipped = 0;
+        while (count == FrameCodec.FRAME_LENGTH) {
+            if (!FrameCodec.checkSumIsOK(this.responseBuffer, off)) {
+                System.arraycopy(this.responseBuffer, off + 1, this.responseBuffer, off,
+                        FrameCodec.FRAME_LENGTH - 1);
+                skipped++;
+                n = this.transport.read(this.responseBuffer, off + FrameCodec.FRAME_LENGTH - 1,
+                        1, deadline);
+                count = FrameCodec.FRAME_LENGTH - 1 + Math.max(n, 0);
+            } else if (!FrameCodec.answers(this.responseBuffer, off, command, 0)) {
+                this.mismatchedFrames++;
+                this.trace.received(this.responseBuffer, off, FrameCodec.FRAME_LENGTH);
+                if (log.isLoggable(Level.WARNING)) {
+                    log.warning(this.serialNum + ": dropping response to another command: "
+                            + FrameTrace.toHex(this.responseBuffer, off, FrameCodec.FRAME_LENGTH));
+                }
+                skipped = skipped + FrameCodec.FRAME_LENGTH;
+                n = this.transport.read(this.responseBuffer, off, FrameCodec.FRAME_LENGTH, deadline);
+                count = Math.max(n, 0);
+            } else {
                 break;
             }
         }
-        
-        response = new int[10];
-        
-        for (int i = 0; i < response.length; i++) {
-            response[i] = in.read();
+        if (skipped > 0) {
+            this.discardedBytes = this.discardedBytes + skipped;
+            log.fine(this.serialNum + ": skipped " + skipped + " bytes to find a frame");
+        }
+        this.responseLength = off + count;
+        this.trace.received(this.responseBuffer, off, count);
+        if (count == FrameCodec.FRAME_LENGTH) {
+            if (timed) {
+                this.roundTrips.record(command[0], (System.nanoTime() - start) / 1000);
+            }
+        } else {
+            this.roundTrips.timedOut(command[0]);
         }
         
-        Formatter f;
-        f = new Formatter(Locale.US);
-        for (int i = 0; i < response.length; i++) {
-            f.format("%02x\t", response[i]);
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(this.serialNum + ": MFC response: "
+                    + FrameTrace.toHex(this.responseBuffer, off, count)
+                    + " (waited " + (System.nanoTime() - start) / 1000 + " us)");
         }
-        log.finest(this.serialNum + ": MFC response: " + f.toString());
         
-        return response;
+        return count == FrameCodec.FRAME_LENGTH;
         
     }
 
-    private boolean checkCheckSum(int[] response) {
+    boolean checkCheckSum(byte[] response, int off) {
         
         boolean isOK;
-        int sum;
-        int checkSum;
         
-        sum = 0;
-
-        for (int i = 0; i < 8; i++) {
-            sum = sum + response[i];
+        isOK = this.responseLength >= off + FrameCodec.FRAME_LENGTH
+                && FrameCodec.checkSumIsOK(response, off);
+        if (!isOK) {
+            // after a communication error the state of MFC is unknown
+            this.statusTime = 0;
+            this.responseFailed = true;
         }
         
-        Formatter f;
-        f = new Formatter(Locale.US);
-        f.format("%02x\t%02x", (int)(sum / 256), sum % 256);
-        log.finest(this.serialNum + ": calculated check sum: " + f.toString());
+        return isOK;
         
-        checkSum = response[8] * (int) Math.pow(16, 2) + response[9];
-        isOK = checkSum == sum;
+    }
 
-        return isOK;
+    /**
+     * @return принятые байты ответа в текстовом виде для сообщений об ошибках
+     */
+    private String describeResponse(byte[] response, int off) {
+        
+        int len;
+        
+        len = Math.max(0, Math.min(FrameCodec.FRAME_LENGTH, this.responseLength - off));
+        
+        return FrameTrace.toHex(response, off, len);
         
     }
 
-    private double decodeFlow(int[] response) {
+    double decodeFlow(byte[] response, int off) {
         
         double flow;
-        int[] binFlow;
-        int decFlow;
-        
-        binFlow = new int[16];
-        decFlow = response[2] * (int)Math.pow(16, 2) + response[3];
-        flow = 0;
         
-        for (int i = 0; i < 16; i++) {
-            binFlow[i] = decFlow % 2;
-            decFlow = (int) (decFlow / 2);
-        }
-        for (int i = 0; i < 15; i++) {
-            flow = flow + binFlow[i] * Math.pow(2, i);
+        flow = FrameCodec.decodeFlow(response, off);
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(this.serialNum + ": decoded flow from MFC: " + String.valueOf(flow));
         }
-        flow = flow / 100.0;
-        if (binFlow[15] == 1) {
-            flow = -flow;
-        }
-        log.finest(this.serialNum + ": decoded flow from MFC: " + String.valueOf(flow));
         
         return flow;
         
@@ -419,25 +930,30 @@ public class MFC implements ActionListener {
 
     private boolean closeMFCValve() throws IOException {
         
+        return retry(FrameCodec.SET_VALVE, (attempt) -> closeValveOnce());
+        
+    }
+
+    private boolean closeValveOnce() throws IOException {
+        
         boolean closed;
-        int[] response;
+        byte[] response;
         boolean checkSumIsOK;
         String valveStatus;
         
         log.finer(this.serialNum + ": closing MFC valve...");
 
         synchronized (lock) {
-            sendCommandToMFC(MFC.CLOSE_VALVE_COMMAND); // ask MFC to close the valve
-            response = getMFCResponse();
-            checkSumIsOK = checkCheckSum(response);
+            // ask MFC to change the valve mode and report its status in a single write
+            response = exchange(FrameCodec.CLOSE_VALVE_FRAME, FrameCodec.GET_STATUS_FRAME);
+            checkSumIsOK = checkCheckSum(response, 0);
             if (checkSumIsOK) {
-                log.finest(this.serialNum + ": check sum is ok. Getting MFC status...");
-                sendCommandToMFC(MFC.GET_STATUS_COMMAND); // ask MFC's status
-                response = getMFCResponse();
-                checkSumIsOK = checkCheckSum(response);
+                log.finest(this.serialNum + ": check sum is ok. Checking MFC status...");
+                checkSumIsOK = checkCheckSum(response, FrameCodec.FRAME_LENGTH);
                 if (checkSumIsOK) {
                     log.finest(this.serialNum + ": check sum is ok");
-                    valveStatus = getMFCValveStatus(response);
+                    valveStatus = getMFCValveStatus(response, FrameCodec.FRAME_LENGTH);
+                    updateStatus(response, FrameCodec.FRAME_LENGTH);
                     if (valveStatus.equals("closed")) {
                         log.finest(this.serialNum + ": valve was closed successfully");
                         closed = true;
@@ -447,54 +963,36 @@ public class MFC implements ActionListener {
                         closed = false;
                     }
                 } else {
-                    Formatter f;
-                    f = new Formatter(Locale.US);
-                    for (int i = 0; i < response.length; i++) {
-                        f.format("%02x\t", response[i]);
-                    }
-                    log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                    log.warning(this.serialNum + ": error in check sum! MFC response: "
+                            + describeResponse(response, FrameCodec.FRAME_LENGTH));
                     closed = false;
                 }
             } else {
-                Formatter f;
-                f = new Formatter(Locale.US);
-                for (int i = 0; i < response.length; i++) {
-                    f.format("%02x\t", response[i]);
-                }
-                log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                log.warning(this.serialNum + ": error in check sum! MFC response: "
+                        + describeResponse(response, 0));
                 closed = false;
             }
         }
+        if (closed) {
+            fireTransient();
+        }
         
         return closed;
         
     }
 
-    private String getMFCValveStatus(int[] response) {
+    String getMFCValveStatus(byte[] response, int off) {
         
         String valveStatus;
-        int[] binStatus;
-        int decStatus;
-        
-        binStatus = new int[8];
-        decStatus = response[1];
-        
-        for (int i = 0; i < 8; i++) {
-            binStatus[i] = decStatus % 2;
-            decStatus = (int)(decStatus / 2);
-        }
-        if (binStatus[2] == 0 && binStatus[3] == 0) {
-            valveStatus = "control";
-        } else if (binStatus[2] == 1 && binStatus[3] == 0) {
-            valveStatus = "opened";
-        } else if (binStatus[2] == 0 && binStatus[3] == 1) {
-            valveStatus = "closed";
-        } else {
-            valveStatus = "opened";
-        }
+        int status;
         
-        log.finest(this.serialNum + ": decoding valve status: " + String.valueOf(binStatus[2]) + 
-                String.valueOf(binStatus[3]) + ": " + valveStatus);
+        status = FrameCodec.decodeStatus(response, off);
+        valveStatus = VALVE_STATUSES[FrameCodec.valveMode(status)];
+        
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(this.serialNum + ": decoding valve status: " + 
+                    Integer.toBinaryString(status) + ": " + valveStatus);
+        }
         
         return valveStatus;
         
@@ -502,25 +1000,30 @@ public class MFC implements ActionListener {
 
     private boolean openMFCValve() throws IOException {
         
+        return retry(FrameCodec.SET_VALVE, (attempt) -> openValveOnce());
+        
+    }
+
+    private boolean openValveOnce() throws IOException {
+        
         boolean opened;
-        int[] response;
+        byte[] response;
         boolean checkSumIsOK;
         String valveStatus;
         
         log.finer(this.serialNum + ": opening MFC valve...");
 
         synchronized (lock) {
-            sendCommandToMFC(MFC.OPEN_VALVE_COMMAND); // ask MFC to open the valve
-            response = getMFCResponse();
-            checkSumIsOK = checkCheckSum(response);
+            // ask MFC to change the valve mode and report its status in a single write
+            response = exchange(FrameCodec.OPEN_VALVE_FRAME, FrameCodec.GET_STATUS_FRAME);
+            checkSumIsOK = checkCheckSum(response, 0);
             if (checkSumIsOK) {
-                log.finest(this.serialNum + ": check sum is ok. Getting MFC status...");
-                sendCommandToMFC(MFC.GET_STATUS_COMMAND); // ask MFC's status
-                response = getMFCResponse();
-                checkSumIsOK = checkCheckSum(response);
+                log.finest(this.serialNum + ": check sum is ok. Checking MFC status...");
+                checkSumIsOK = checkCheckSum(response, FrameCodec.FRAME_LENGTH);
                 if (checkSumIsOK) {
                     log.finest(this.serialNum + ": check sum is ok.");
-                    valveStatus = getMFCValveStatus(response);
+                    valveStatus = getMFCValveStatus(response, FrameCodec.FRAME_LENGTH);
+                    updateStatus(response, FrameCodec.FRAME_LENGTH);
                     if (valveStatus.equals("opened")) {
                         log.finest(this.serialNum + ": valve was opened successfully.");
                         opened = true;
@@ -530,24 +1033,19 @@ public class MFC implements ActionListener {
                         opened = false;
                     }
                 } else {
-                    Formatter f;
-                    f = new Formatter(Locale.US);
-                    for (int i = 0; i < response.length; i++) {
-                        f.format("%02x\t", response[i]);
-                    }
-                    log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                    log.warning(this.serialNum + ": error in check sum! MFC response: "
+                            + describeResponse(response, FrameCodec.FRAME_LENGTH));
                     opened = false;
                 }
             } else {
-                Formatter f;
-                f = new Formatter(Locale.US);
-                for (int i = 0; i < response.length; i++) {
-                    f.format("%02x\t", response[i]);
-                }
-                log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                log.warning(this.serialNum + ": error in check sum! MFC response: "
+                        + describeResponse(response, 0));
                 opened = false;
             }
         }
+        if (opened) {
+            fireTransient();
+        }
 
         return opened;
         
@@ -555,25 +1053,30 @@ public class MFC implements ActionListener {
 
     private boolean setMFCValveInControlMode() throws IOException {
         
+        return retry(FrameCodec.SET_VALVE, (attempt) -> setValveInControlModeOnce());
+        
+    }
+
+    private boolean setValveInControlModeOnce() throws IOException {
+        
         boolean control;
-        int[] response;
+        byte[] response;
         boolean checkSumIsOK;
         String valveStatus;
         
         log.finer(this.serialNum + ": settting MFC valve in control mode...");
 
         synchronized (lock) {
-            sendCommandToMFC(MFC.CONTROL_VALVE_COMMAND); // ask MFC to open the valve
-            response = getMFCResponse();
-            checkSumIsOK = checkCheckSum(response);
+            // ask MFC to change the valve mode and report its status in a single write
+            response = exchange(FrameCodec.CONTROL_VALVE_FRAME, FrameCodec.GET_STATUS_FRAME);
+            checkSumIsOK = checkCheckSum(response, 0);
             if (checkSumIsOK) {
-                log.finest(this.serialNum + ": check sum is ok. Getting MFC status...");
-                sendCommandToMFC(MFC.GET_STATUS_COMMAND); // ask MFC's status
-                response = getMFCResponse();
-                checkSumIsOK = checkCheckSum(response);
+                log.finest(this.serialNum + ": check sum is ok. Checking MFC status...");
+                checkSumIsOK = checkCheckSum(response, FrameCodec.FRAME_LENGTH);
                 if (checkSumIsOK) {
                     log.finest(this.serialNum + ": check sum is ok");
-                    valveStatus = getMFCValveStatus(response);
+                    valveStatus = getMFCValveStatus(response, FrameCodec.FRAME_LENGTH);
+                    updateStatus(response, FrameCodec.FRAME_LENGTH);
                     if (valveStatus.equals("control")) {
                         log.finest(this.serialNum + ": valve was set in control mode successfully");
                         control = true;
@@ -583,65 +1086,108 @@ public class MFC implements ActionListener {
                         control = false;
                     }
                 } else {
-                    Formatter f;
-                    f = new Formatter(Locale.US);
-                    for (int i = 0; i < response.length; i++) {
-                        f.format("%02x\t", response[i]);
-                    }
-                    log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                    log.warning(this.serialNum + ": error in check sum! MFC response: "
+                            + describeResponse(response, FrameCodec.FRAME_LENGTH));
                     control = false;
                 }
             } else {
-                Formatter f;
-                f = new Formatter(Locale.US);
-                for (int i = 0; i < response.length; i++) {
-                    f.format("%02x\t", response[i]);
-                }
-                log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                log.warning(this.serialNum + ": error in check sum! MFC response: "
+                        + describeResponse(response, 0));
                 control = false;
             }
         }
+        if (control) {
+            fireTransient();
+        }
 
         return control;
         
     }
 
-    private boolean setMFCNewFlow(double flowInPercents) throws IOException {
+    boolean setMFCNewFlow(final double flowInPercents) throws IOException {
+        
+        return retry(FrameCodec.SET_FLOW, (attempt) -> {
+            // the previous try may have been applied with only the answer lost
+            if (attempt > 1 && setFlowIsConfirmed(flowInPercents)) {
+                fireTransient();
+                return true;
+            }
+            // a lost check must not turn a refusal of the command into a retry
+            this.responseFailed = false;
+            return setNewFlowOnce(flowInPercents);
+        });
+        
+    }
+
+    /**
+     * Считывает из РРГ заданный расход и сравнивает его с требуемым
+     * @param flowInPercents требуемый расход в процентах
+     * @return true, если РРГ подтвердил требуемый расход
+     */
+    private boolean setFlowIsConfirmed(double flowInPercents) throws IOException {
+        
+        byte[] response;
+        boolean confirmed;
+        
+        synchronized (lock) {
+            response = this.exchange(FrameCodec.GET_FLOW_FRAME);
+            confirmed = this.checkCheckSum(response, 0)
+                    && Math.abs(flowInPercents - decodeSetFlow(response, 0)) < 0.05;
+            if (confirmed) {
+                this.updateFromFlowResponse(response, 0);
+                log.fine(this.serialNum + ": new flow was already set by previous try");
+            }
+        }
+        
+        return confirmed;
+        
+    }
+
+    private boolean setNewFlowOnce(double flowInPercents) throws IOException {
         
         boolean successful;
-        int[] response;
+        byte[] response;
         String valveStatus;
         boolean checkSumIsOK;
         double setFlow;
-        int[] newFlowCommand;
+        byte[] newFlowCommand;
         
         log.finer(this.serialNum + ": setting MFC new flow...");
         
-        newFlowCommand = getNewFlowCommand((int)(flowInPercents * 100.0));
-        
         synchronized (lock) {
-            log.info(this.serialNum + "getting MFC status...");
-            sendCommandToMFC(MFC.GET_STATUS_COMMAND);
-            response = this.getMFCResponse();
-            checkSumIsOK = this.checkCheckSum(response);
+            newFlowCommand = getNewFlowCommand((int)(flowInPercents * 100.0));
+            if (statusIsFresh()) {
+                // the valve mode was confirmed recently, no need to ask again
+                log.finest(this.serialNum + ": using cached MFC status.");
+                response = this.responseBuffer;
+                checkSumIsOK = true;
+                valveStatus = this.valveStatus;
+            } else {
+                log.finer(this.serialNum + ": getting MFC status...");
+                response = this.exchange(FrameCodec.GET_STATUS_FRAME);
+                checkSumIsOK = this.checkCheckSum(response, 0);
+                valveStatus = null;
+                if (checkSumIsOK) {
+                    log.finest(this.serialNum + ": check sum is ok.");
+                    valveStatus = this.getMFCValveStatus(response, 0);
+                    this.updateStatus(response, 0);
+                }
+            }
             if (checkSumIsOK) {
-                log.finest(this.serialNum + ": check sum is ok.");
-                valveStatus = this.getMFCValveStatus(response);
                 if (valveStatus.equals("control")) {
                     log.finest(this.serialNum + ": valve in control mode. Sending "
                             + "new flow to MFC...");
-                    this.sendCommandToMFC(newFlowCommand);
-                    response = this.getMFCResponse();
-                    checkSumIsOK = this.checkCheckSum(response);
+                    // the set flow is read back in the same write
+                    response = this.exchange(newFlowCommand, FrameCodec.GET_FLOW_FRAME);
+                    checkSumIsOK = this.checkCheckSum(response, 0);
                     if (checkSumIsOK) {
-                        log.finest(this.serialNum + ": check sum is ok. Requesting "
+                        log.finest(this.serialNum + ": check sum is ok. Checking "
                                 + "set flow from MFC...");
-                        this.sendCommandToMFC(MFC.GET_FLOW_COMMAND);
-                        response = this.getMFCResponse();
-                        checkSumIsOK = this.checkCheckSum(response);
+                        checkSumIsOK = this.checkCheckSum(response, FrameCodec.FRAME_LENGTH);
                         if (checkSumIsOK) {
                             log.finest(this.serialNum + ": check sum is ok.");
-                            setFlow = decodeSetFlow(response);
+                            setFlow = decodeSetFlow(response, FrameCodec.FRAME_LENGTH);
+                            this.updateFromFlowResponse(response, FrameCodec.FRAME_LENGTH);
                             if (Math.abs(flowInPercents - setFlow) < 0.05) {
                                 log.finest(this.serialNum + ": new flow was successfully set.");
                                 successful = true;
@@ -655,21 +1201,13 @@ public class MFC implements ActionListener {
                                 log.warning(f.toString());
                             }
                         } else {
-                            Formatter f;
-                            f = new Formatter(Locale.US);
-                            for (int i = 0; i < response.length; i++) {
-                                f.format("%02x\t", response[i]);
-                            }
-                            log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                            log.warning(this.serialNum + ": error in check sum! MFC response: "
+                                    + describeResponse(response, FrameCodec.FRAME_LENGTH));
                             successful = false;
                         }
                     } else {
-                        Formatter f;
-                        f = new Formatter(Locale.US);
-                        for (int i = 0; i < response.length; i++) {
-                            f.format("%02x\t", response[i]);
-                        }
-                        log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                        log.warning(this.serialNum + ": error in check sum! MFC response: "
+                                + describeResponse(response, 0));
                         successful = false;
                     }
                 } else {
@@ -678,78 +1216,201 @@ public class MFC implements ActionListener {
                     successful = false;
                 }
             } else {
-                Formatter f;
-                f = new Formatter(Locale.US);
-                for (int i = 0; i < response.length; i++) {
-                    f.format("%02x\t", response[i]);
-                }
-                log.warning(this.serialNum + ": error in check sum! MFC response: " + f.toString());
+                log.warning(this.serialNum + ": error in check sum! MFC response: "
+                        + describeResponse(response, 0));
                 successful = false;
             }
         }
+        if (successful) {
+            fireTransient();
+        }
         
         return successful;
         
     }
 
-    private int[] getNewFlowCommand(int newFlow) {
+    /**
+     * Выполняет команду, повторяя её по {@link RetryPolicy}, если ответ не
+     * получен или искажён. Отказ РРГ не повторяется
+     * @param command код команды для выбора количества попыток
+     * @param attempt однократное выполнение команды
+     * @return результат последней попытки
+     * @throws IOException если обмен данными не удался и попытки исчерпаны
+     */
+    private boolean retry(int command, Attempt attempt) throws IOException {
         
-        int[] newFlowCommand;
+        boolean successful;
         
-        log.finest(this.serialNum + ": building SetNewFlow command...");
+        for (int i = 1; ; i++) {
+            this.responseFailed = false;
+            try {
+                successful = attempt.run(i);
+            } catch (IOException ex) {
+                if (i >= this.retryPolicy.getAttempts(command)) {
+                    throw ex;
+                }
+                this.responseFailed = true;
+                successful = false;
+            }
+            if (successful) {
+                if (i > 1) {
+                    this.recovered.incrementAndGet(command);
+                }
+                return true;
+            }
+            if (!prepareRetry(command, i)) {
+                return false;
+            }
+        }
         
-        newFlowCommand = new int[8];
+    }
+
+    /**
+     * Проверяет, можно ли повторить команду, и восстанавливает синхронизацию с
+     * РРГ: дожидается тишины на линии и отбрасывает принятые байты
+     * @param command код команды
+     * @param attempt номер неудачной попытки
+     * @return true, если команду следует повторить
+     */
+    private boolean prepareRetry(int command, int attempt) throws IOException {
+        
+        int attempts;
+        
+        attempts = this.retryPolicy.getAttempts(command);
+        if (!this.responseFailed || attempt >= attempts) {
+            return false;
+        }
+        this.retries.incrementAndGet(command);
+        log.fine(this.serialNum + ": retrying command 0x" + Integer.toHexString(command)
+                + ", attempt " + (attempt + 1) + " of " + attempts);
+        synchronized (lock) {
+            int n;
+            do {
+                n = this.transport.read(this.responseBuffer, 0, this.responseBuffer.length,
+                        System.nanoTime() + RESYNC_QUIET_TIME * 1000000L);
+                if (n > 0) {
+                    this.discardedBytes = this.discardedBytes + n;
+                }
+            } while (n > 0);
+        }
         
-        newFlowCommand[0] = MFC.SET_NEW_FLOW_COMMAND[0];
-        newFlowCommand[1] = MFC.SET_NEW_FLOW_COMMAND[1];
-        newFlowCommand[2] = (int)(newFlow / (int)(Math.pow(16, 2)));
-        newFlowCommand[3] = newFlow % (int)(Math.pow(16, 2));
-        newFlowCommand[4] = MFC.SET_NEW_FLOW_COMMAND[4];
-        newFlowCommand[5] = MFC.SET_NEW_FLOW_COMMAND[5];
-        newFlowCommand[6] = MFC.SET_NEW_FLOW_COMMAND[6];
-        newFlowCommand[7] = MFC.SET_NEW_FLOW_COMMAND[7];
+        return true;
         
-        return newFlowCommand;
+    }
+
+    private interface Attempt {
+        
+        /**
+         * @param attempt номер попытки, начиная с 1
+         * @return true, если команда выполнена
+         */
+        boolean run(int attempt) throws IOException;
         
     }
 
-    private double decodeSetFlow(int[] response) {
+    byte[] getNewFlowCommand(int newFlow) {
         
-        double setFlow;
-        int decFlow;
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(this.serialNum + ": building SetNewFlow command...");
+        }
+        
+        FrameCodec.encodeSetFlow(this.setFlowFrame, 0, newFlow);
+        
+        return this.setFlowFrame;
+        
+    }
 
-        decFlow = response[4] * (int) Math.pow(16, 2) + response[5];
-        setFlow = decFlow / 100.0;
+    double decodeSetFlow(byte[] response, int off) {
         
-        log.finest(this.serialNum + ": decoding requested set flow from MFC: " + String.valueOf(setFlow));
+        double setFlow;
+        
+        setFlow = FrameCodec.decodeSetFlow(response, off);
+        
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(this.serialNum + ": decoding requested set flow from MFC: " + String.valueOf(setFlow));
+        }
 
         return setFlow;
         
     }
 
+    /**
+     * Задаёт обработчик, вызываемый после успешных команд, изменяющих расход
+     * через РРГ: переключения клапана и задания расхода. Обработчик вызывается
+     * в потоке, выполнившем команду
+     * @param listener обработчик или null
+     */
+    void setTransientListener(Runnable listener) {
+        
+        this.transientListener = listener;
+        
+    }
+
+    private void fireTransient() {
+        
+        Runnable listener;
+        
+        listener = this.transientListener;
+        if (listener != null) {
+            listener.run();
+        }
+        
+    }
+
+    /**
+     * Запоминает статус из ответа РРГ с верной контрольной суммой
+     */
+    private void updateStatus(byte[] response, int off) {
+        
+        int newStatus;
+        
+        newStatus = FrameCodec.decodeStatus(response, off);
+        this.status = newStatus;
+        this.valveStatus = VALVE_STATUSES[FrameCodec.valveMode(newStatus)];
+        this.statusTime = System.nanoTime();
+        
+    }
+
+    /**
+     * Запоминает статус и заданный расход из ответа на команду чтения расхода.
+     * Байт статуса передаётся РРГ во втором байте каждого ответа
+     */
+    private void updateFromFlowResponse(byte[] response, int off) {
+        
+        updateStatus(response, off);
+        this.setpoint = FrameCodec.decodeSetFlow(response, off);
+        
+    }
+
+    private boolean statusIsFresh() {
+        
+        long confirmed;
+        
+        confirmed = this.statusTime;
+        
+        return confirmed != 0 && this.valveStatus != null
+                && System.nanoTime() - confirmed < this.statusMaxAge;
+        
+    }
+
     private boolean tryToMakeConnection() throws IOException {
         
         boolean successful;
-        int[] response;
+        byte[] response;
         boolean checkSumIsOK;
         
         log.finer("Trying to make connection with MFC...");
         
         synchronized (lock) {
-            this.sendCommandToMFC(MFC.HANDSHAKE_COMMAND);
-            response = this.getMFCResponse();
-            checkSumIsOK = this.checkCheckSum(response);
+            response = this.exchange(FrameCodec.HANDSHAKE_FRAME);
+            checkSumIsOK = this.checkCheckSum(response, 0);
             if (checkSumIsOK) {
                 log.finest("Check sum is ok. Connection was established successfully.");
-                this.serialNum = getMFCSerialNum(response);
+                this.serialNum = getMFCSerialNum(response, 0);
                 successful = true;
             } else {
-                Formatter f;
-                f = new Formatter(Locale.US);
-                for (int i = 0; i < response.length; i++) {
-                    f.format("%02x\t", response[i]);
-                }
-                log.warning("Error in check sum! MFC response: " + f.toString());
+                log.warning("Error in check sum! MFC response: "
+                        + describeResponse(response, 0));
                 successful = false;
             }
         }
@@ -758,12 +1419,107 @@ public class MFC implements ActionListener {
         
     }
 
-    private String getMFCSerialNum(int[] response) {
+    /**
+     * Восстанавливает связь с РРГ после сбоя: повторно открывает канал,
+     * устанавливает связь и проверяет заводской номер, после чего возвращает
+     * клапан в последний подтверждённый режим и задаёт последний подтверждённый
+     * расход. Вызывается из потока обмена данными РРГ
+     * @return true, если связь восстановлена и состояние РРГ восстановлено
+     * @throws IOException если РРГ не отвечает или на порту другой РРГ
+     */
+    boolean reconnect() throws IOException {
+        
+        return reconnect(null);
+        
+    }
+    
+    /**
+     * Восстанавливает связь с РРГ через другой порт, например после повторного
+     * подключения USB-преобразователя, получившего новое имя. РРГ переносится
+     * на новый канал, только если на нём ответил РРГ с тем же заводским
+     * номером; иначе новый канал закрывается и РРГ остаётся на прежнем.
+     * Вызывается из потока обмена данными РРГ
+     * @param transport новый, ещё не открытый канал связи или null для
+     * повторного открытия прежнего канала
+     * @return true, если связь восстановлена и состояние РРГ восстановлено.
+     * Если РРГ перенесён на новый канал, но его состояние не восстановлено,
+     * {@link #getCommID()} уже возвращает имя нового порта
+     * @throws IOException если РРГ не отвечает или на порту другой РРГ
+     */
+    public boolean reconnect(Transport transport) throws IOException {
+        
+        boolean connected;
+        boolean restored;
+        String expected;
+        String found;
+        String mode;
+        double flow;
+        Transport previous;
+        
+        log.fine(this.serialNum + ": reconnecting via "
+                + (transport == null ? this.commID : transport.getName()) + "...");
+        
+        mode = this.valveStatus;
+        flow = this.setpoint;
+        synchronized (lock) {
+            expected = this.serialNum;
+            previous = this.transport;
+            try {
+                previous.close();
+            } catch (IOException ex) {
+                log.fine(this.serialNum + ": unable to close " + this.commID + ": " + ex.getMessage());
+            }
+            if (transport != null) {
+                this.transport = transport;
+            }
+            connected = false;
+            try {
+                this.transport.open();
+                connected = tryToMakeConnection();
+                if (connected && !expected.equals(this.serialNum)) {
+                    found = this.serialNum;
+                    connected = false;
+                    throw new IOException(this.transport.getName() + ": MFC " + found
+                            + " answered instead of MFC " + expected);
+                }
+            } finally {
+                this.serialNum = expected;
+                if (!connected) {
+                    this.transport.close();
+                    // keep the old port, it may come back under the same name
+                    this.transport = previous;
+                } else if (this.transport != previous) {
+                    log.info(this.serialNum + ": moved from " + this.commID + " to "
+                            + this.transport.getName());
+                    this.commID = this.transport.getName();
+                    this.roundTrips.reset();
+                }
+            }
+        }
+        if (!connected) {
+            return false;
+        }
+        log.info(this.serialNum + ": connection restored, restoring valve mode "
+                + mode + " and set flow " + flow);
+        if ("control".equals(mode)) {
+            restored = setMFCValveInControlMode()
+                    && (Double.isNaN(flow) || setMFCNewFlow(flow));
+        } else if ("opened".equals(mode)) {
+            restored = openMFCValve();
+        } else {
+            restored = closeMFCValve();
+        }
+        
+        return restored;
+        
+    }
+
+    private String getMFCSerialNum(byte[] response, int off) {
         
         String serialNum;
         int n;
 
-        n = response[5] * (int) Math.pow(16, 2) + response[6];
+        n = FrameCodec.decodeSerialNum(response, off);
         serialNum = String.valueOf(n);
         
         log.finest("MFC serial number: " + serialNum);
@@ -772,8 +1528,12 @@ public class MFC implements ActionListener {
         
     }
 
-    @Override
-    public void actionPerformed(ActionEvent ae) {
+    /**
+     * Опрашивает текущий расход. Вызывается из потока опроса {@link AcquisitionEngine}
+     * и добавляет измерение в {@link #getHistory() историю}
+     * @return расход в процентах или Double.NaN при ошибке связи
+     */
+    double pollFlow() {
         
         double flow;
         
@@ -783,13 +1543,20 @@ public class MFC implements ActionListener {
             log.warning(this.serialNum + ": failed to get flow from MFC!");
             flow = Double.NaN;
         }
-        this.propChSup.firePropertyChange(this.serialNum, 0, flow);
+        this.history.add(System.nanoTime(), flow, this.setpoint, this.status);
+        
+        return flow;
         
     }
     
-    public void startTimer() {
+    /**
+     * Сообщает подписчикам новое значение расхода. Вызывается в потоке обработки
+     * событий Swing
+     * @param flow расход в процентах или Double.NaN при ошибке связи
+     */
+    void publishFlow(double flow) {
         
-        this.timer.start();
+        this.propChSup.firePropertyChange(this.serialNum, 0, flow);
         
     }
 
@@ -0,0 +1,68 @@
+package mfc.model;
+
+/**
+ * Количество попыток выполнения команд РРГ. Повторяется только команда, ответ
+ * на которую не получен или искажён; отказ РРГ, например попытка задать расход
+ * при закрытом клапане, не повторяется. Повторы безопасны для всех команд
+ * протокола: команды чтения (GET_*) не изменяют состояние РРГ, повторное
+ * переключение клапана оставляет его в том же режиме, а перед повторным
+ * заданием расхода заданный расход сначала считывается из РРГ.
+ *
+ * @author Лейбо Д.
+ */
+public class RetryPolicy {
+    
+    /**
+     * Количество попыток по умолчанию для команд чтения, управления клапаном и
+     * задания расхода
+     */
+    public static final int DEFAULT_ATTEMPTS = 3;
+    
+    /**
+     * Количество попыток по кодам команд
+     */
+    private final int[] attempts;
+    
+    /**
+     * Создаёт политику по умолчанию: {@link #DEFAULT_ATTEMPTS} попыток для
+     * команд чтения, управления клапаном и задания расхода и одна попытка для
+     * остальных команд. Установление связи не повторяется, чтобы поиск РРГ на
+     * свободных портах не замедлялся
+     */
+    public RetryPolicy() {
+        
+        this.attempts = new int[256];
+        for (int i = 0; i < this.attempts.length; i++) {
+            this.attempts[i] = 1;
+        }
+        this.attempts[FrameCodec.GET_STATUS] = DEFAULT_ATTEMPTS;
+        this.attempts[FrameCodec.GET_FLOW] = DEFAULT_ATTEMPTS;
+        this.attempts[FrameCodec.SET_VALVE] = DEFAULT_ATTEMPTS;
+        this.attempts[FrameCodec.SET_FLOW] = DEFAULT_ATTEMPTS;
+        
+    }
+    
+    /**
+     * @param command код команды, например {@link FrameCodec#SET_FLOW}
+     * @param attempts количество попыток, не меньше 1
+     */
+    public void setAttempts(int command, int attempts) {
+        
+        if (attempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required: " + attempts);
+        }
+        this.attempts[command & 0xFF] = attempts;
+        
+    }
+    
+    /**
+     * @param command код команды
+     * @return количество попыток выполнения команды
+     */
+    public int getAttempts(int command) {
+        
+        return this.attempts[command & 0xFF];
+        
+    }
+    
+}
\ No newline at end of file
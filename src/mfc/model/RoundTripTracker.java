@@ -0,0 +1,178 @@
+package mfc.model;
+
+import java.util.Arrays;
+
+/**
+ * Время ожидания ответа РРГ, вычисляемое по измеренному времени обмена
+ * отдельно для каждой команды. Для каждой команды хранятся последние
+ * {@link #WINDOW} измерений; время ожидания равно {@link #PERCENTILE} этих
+ * измерений плюс {@link #MARGIN} и ограничено снизу и сверху. Пока измерений
+ * мало, используется верхняя граница. Если ответ не получен, время ожидания
+ * команды удваивается до верхней границы, чтобы медленный, но исправный РРГ
+ * не считался потерянным.
+ * <p>
+ * Объект не синхронизирован и используется под блокировкой обмена данными РРГ.
+ *
+ * @author Лейбо Д.
+ */
+class RoundTripTracker {
+    
+    /**
+     * Количество хранимых измерений для каждой команды
+     */
+    static final int WINDOW = 64;
+    
+    /**
+     * Количество измерений, после которого время ожидания вычисляется по ним
+     */
+    static final int MIN_SAMPLES = 16;
+    
+    static final double PERCENTILE = 0.99;
+    
+    /**
+     * Запас к измеренному времени обмена, мкс
+     */
+    static final long MARGIN = 10000;
+    
+    /**
+     * Количество новых измерений, после которого время ожидания пересчитывается
+     */
+    private static final int RECALCULATE_EVERY = 8;
+    
+    /**
+     * Измерения по кодам команд, мкс. Массив создаётся при первом измерении
+     */
+    private final long[][] samples;
+    
+    private final int[] counts;
+    
+    /**
+     * Текущее время ожидания по кодам команд или 0, если оно не вычислено, мкс
+     */
+    private final long[] timeouts;
+    
+    private final long[] sorted;
+    
+    private long floor;
+    
+    private long ceiling;
+    
+    /**
+     * @param floor нижняя граница времени ожидания, мкс
+     * @param ceiling верхняя граница времени ожидания, мкс
+     */
+    RoundTripTracker(long floor, long ceiling) {
+        
+        this.samples = new long[256][];
+        this.counts = new int[256];
+        this.timeouts = new long[256];
+        this.sorted = new long[WINDOW];
+        this.floor = floor;
+        this.ceiling = ceiling;
+        
+    }
+    
+    /**
+     * Задаёт границы времени ожидания и пересчитывает его для всех команд
+     * @param floor нижняя граница, мкс
+     * @param ceiling верхняя граница, мкс
+     */
+    void setLimits(long floor, long ceiling) {
+        
+        this.floor = floor;
+        this.ceiling = Math.max(floor, ceiling);
+        for (int command = 0; command < this.timeouts.length; command++) {
+            if (this.counts[command] >= MIN_SAMPLES) {
+                recalculate(command);
+            } else {
+                this.timeouts[command] = 0;
+            }
+        }
+        
+    }
+    
+    /**
+     * @param command код команды
+     * @return время ожидания ответа на команду, мкс
+     */
+    long timeout(int command) {
+        
+        long timeout;
+        
+        timeout = this.timeouts[command & 0xFF];
+        
+        return timeout > 0 ? timeout : this.ceiling;
+        
+    }
+    
+    /**
+     * Запоминает время получения ответа на команду
+     * @param command код команды
+     * @param micros время от передачи команды до приёма ответа, мкс
+     */
+    void record(int command, long micros) {
+        
+        long[] window;
+        int count;
+        
+        command = command & 0xFF;
+        window = this.samples[command];
+        if (window == null) {
+            window = new long[WINDOW];
+            this.samples[command] = window;
+        }
+        count = this.counts[command];
+        window[count % WINDOW] = micros;
+        count++;
+        // keep the counter from overflowing while preserving the ring position
+        this.counts[command] = count >= 2 * WINDOW ? count - WINDOW : count;
+        if (count == MIN_SAMPLES || (count > MIN_SAMPLES && count % RECALCULATE_EVERY == 0)
+                || micros > this.timeouts[command]) {
+            recalculate(command);
+        }
+        
+    }
+    
+    /**
+     * Увеличивает время ожидания команды после неполученного ответа
+     * @param command код команды
+     */
+    void timedOut(int command) {
+        
+        command = command & 0xFF;
+        if (this.timeouts[command] > 0) {
+            this.timeouts[command] = Math.min(this.timeouts[command] * 2, this.ceiling);
+        }
+        
+    }
+    
+    /**
+     * Забывает измерения всех команд, например после переноса РРГ на другой
+     * порт
+     */
+    void reset() {
+        
+        Arrays.fill(this.counts, 0);
+        Arrays.fill(this.timeouts, 0);
+        
+    }
+    
+    private void recalculate(int command) {
+        
+        int n;
+        int index;
+        long timeout;
+        
+        if (this.counts[command] < MIN_SAMPLES) {
+            return;
+        }
+        n = Math.min(this.counts[command], WINDOW);
+        System.arraycopy(this.samples[command], 0, this.sorted, 0, n);
+        Arrays.sort(this.sorted, 0, n);
+        index = Math.max(0, (int) Math.ceil(PERCENTILE * n) - 1);
+        timeout = this.sorted[index] + MARGIN;
+        this.timeouts[command] = Math.max(this.floor, Math.min(timeout, this.ceiling));
+        
+    }
+    
+}
\ No newline at end of file
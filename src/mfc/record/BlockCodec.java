@@ -0,0 +1,247 @@
+package mfc.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Сжатие блоков измерений одного РРГ для архивных файлов {@link BlockFile}.
+ * Блок хранит до {@link #BLOCK_SAMPLES} измерений по столбцам:
+ * <ul>
+ * <li>время, округлённое до миллисекунд: первое значение, первая разность и
+ * далее разности разностей. При постоянном периоде опроса разность разностей
+ * близка к нулю и занимает один байт;
+ * <li>расход в сотых долях процента, как его передаёт РРГ
+ * ({@link mfc.model.FrameCodec#decodeFlow}): первое значение и далее
+ * разности соседних значений;
+ * <li>заданный расход в сотых долях процента и байт статуса без знака или -1,
+ * если статус неизвестен: пары значение - длина серии, так как они меняются
+ * редко. В файлах версии 1 байт статуса записан как есть, и -1 в нём не
+ * отличается от статуса 0xFF.
+ * </ul>
+ * Целые числа записываются в формате zigzag varint: 7 бит на байт, малые по
+ * модулю значения занимают один байт. Отсутствующее значение (NaN)
+ * кодируется числом {@link #MISSING}, которое не может передать РРГ ни как
+ * расход, ни как заданный расход.
+ *
+ * @author Лейбо Д.
+ */
+final class BlockCodec {
+    
+    static final int MAGIC = 0x4D46435A; // "MFCZ"
+    
+    static final int VERSION = 2;
+    
+    /**
+     * Версия, в которой байт статуса записан без признака неизвестного статуса
+     */
+    static final int VERSION_BYTE_STATUS = 1;
+    
+    static final String EXTENSION = ".mfcz";
+    
+    /**
+     * Максимальное количество измерений в блоке
+     */
+    static final int BLOCK_SAMPLES = 4096;
+    
+    /**
+     * Наибольший размер сжатого измерения, байт
+     */
+    static final int MAX_SAMPLE_SIZE = 10 + 5 + 10 + 7;
+    
+    /**
+     * Код отсутствующего значения. Расход передаётся 15 битами модуля и знаком,
+     * заданный расход - 16 битами без знака, поэтому этот код не встречается в
+     * ответах РРГ
+     */
+    static final int MISSING = Integer.MIN_VALUE;
+    
+    /**
+     * Размер записи индекса блоков: серийный номер, количество измерений,
+     * наименьшее и наибольшее время, наименьший и наибольший расход, смещение
+     * и длина блока
+     */
+    static final int ENTRY_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 8 + 4;
+    
+    /**
+     * Размер окончания файла: смещение индекса, количество блоков, MAGIC
+     */
+    static final int FOOTER_SIZE = 8 + 4 + 4;
+    
+    private BlockCodec() {
+    }
+    
+    /**
+     * @param value расход, %, или NaN
+     * @return расход в сотых долях процента или {@link #MISSING}, если
+     * значение отсутствует или не помещается в int
+     */
+    static int quantize(float value) {
+        
+        long code;
+        
+        if (Float.isNaN(value)) {
+            return MISSING;
+        }
+        // round the magnitude like FrameCodec.encodeFlowWord does
+        code = value < 0 ? -Math.round(-value * 100.0) : Math.round(value * 100.0);
+        
+        return code > Integer.MIN_VALUE && code <= Integer.MAX_VALUE ? (int) code : MISSING;
+        
+    }
+    
+    /**
+     * @param code расход в сотых долях процента или {@link #MISSING}
+     * @return расход, %, или NaN
+     */
+    static float restore(int code) {
+        
+        if (code == MISSING) {
+            return Float.NaN;
+        }
+        
+        return (float) (code / 100.0);
+        
+    }
+    
+    /**
+     * Сжимает блок измерений
+     * @param times время измерений, мкс
+     * @param flows расход в сотых долях процента
+     * @param setpoints заданный расход в сотых долях процента
+     * @param statuses байты статуса без знака или -1
+     * @param n количество измерений
+     * @param out буфер размером не меньше n * {@link #MAX_SAMPLE_SIZE}
+     * @return длина сжатого блока
+     */
+    static int encode(long[] times, int[] flows, int[] setpoints, int[] statuses, int n,
+            byte[] out) {
+        
+        int pos;
+        long time;
+        long previous;
+        long delta;
+        long previousDelta;
+        int run;
+        
+        pos = 0;
+        previous = 0;
+        previousDelta = 0;
+        for (int i = 0; i < n; i++) {
+            time = Math.floorDiv(times[i], 1000);
+            delta = time - previous;
+            pos = putVarLong(out, pos, i == 0 ? time : delta - previousDelta);
+            previous = time;
+            previousDelta = i == 0 ? 0 : delta;
+        }
+        for (int i = 0; i < n; i++) {
+            // a delta to or from MISSING does not fit in int
+            pos = putVarLong(out, pos, i == 0 ? flows[0] : (long) flows[i] - flows[i - 1]);
+        }
+        for (int i = 0; i < n; i = i + run) {
+            run = 1;
+            while (i + run < n && setpoints[i + run] == setpoints[i]) {
+                run++;
+            }
+            pos = putVarLong(out, pos, setpoints[i]);
+            pos = putVarLong(out, pos, run);
+        }
+        for (int i = 0; i < n; i = i + run) {
+            run = 1;
+            while (i + run < n && statuses[i + run] == statuses[i]) {
+                run++;
+            }
+            pos = putVarLong(out, pos, statuses[i]);
+            pos = putVarLong(out, pos, run);
+        }
+        
+        return pos;
+        
+    }
+    
+    /**
+     * Распаковывает блок измерений
+     * @param in буфер, позиция которого указывает на начало блока
+     * @param version версия файла
+     * @param n количество измерений в блоке
+     * @param times массив для времени измерений, мкс
+     * @param flows массив для расхода в сотых долях процента
+     * @param setpoints массив для заданного расхода в сотых долях процента
+     * @param statuses массив для байтов статуса без знака или -1
+     */
+    static void decode(ByteBuffer in, int version, int n, long[] times, int[] flows,
+            int[] setpoints, int[] statuses) {
+        
+        long time;
+        long delta;
+        int run;
+        int value;
+        int status;
+        
+        time = 0;
+        delta = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0) {
+                time = getVarLong(in);
+            } else {
+                delta = delta + getVarLong(in);
+                time = time + delta;
+            }
+            times[i] = time * 1000;
+        }
+        for (int i = 0; i < n; i++) {
+            flows[i] = (int) (getVarLong(in) + (i == 0 ? 0 : flows[i - 1]));
+        }
+        for (int i = 0; i < n; ) {
+            value = (int) getVarLong(in);
+            run = (int) getVarLong(in);
+            for (int j = 0; j < run && i < n; j++) {
+                setpoints[i++] = value;
+            }
+        }
+        for (int i = 0; i < n; ) {
+            if (version == VERSION_BYTE_STATUS) {
+                status = RunFormat.status(in.get(), (byte) 0);
+            } else {
+                status = (int) getVarLong(in);
+            }
+            run = (int) getVarLong(in);
+            for (int j = 0; j < run && i < n; j++) {
+                statuses[i++] = status;
+            }
+        }
+        
+    }
+    
+    private static int putVarLong(byte[] out, int pos, long value) {
+        
+        long bits;
+        
+        bits = (value << 1) ^ (value >> 63);
+        while ((bits & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((bits & 0x7F) | 0x80);
+            bits = bits >>> 7;
+        }
+        out[pos++] = (byte) bits;
+        
+        return pos;
+        
+    }
+    
+    private static long getVarLong(ByteBuffer in) {
+        
+        long bits;
+        int shift;
+        byte b;
+        
+        bits = 0;
+        shift = 0;
+        do {
+            b = in.get();
+            bits = bits | ((long) (b & 0x7F) << shift);
+            shift = shift + 7;
+        } while (b < 0);
+        
+        return (bits >>> 1) ^ -(bits & 1);
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,240 @@
+package mfc.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Архивный файл со сжатыми блоками измерений, открытый для чтения. Индекс
+ * блоков читается при открытии, сами блоки распаковываются только для
+ * запросов, которым они могут соответствовать по серийному номеру, времени и
+ * расходу.
+ * <p>
+ * Объект не синхронизирован: для параллельного чтения каждый поток открывает
+ * файл отдельно.
+ *
+ * @author Лейбо Д.
+ */
+public class BlockFile implements Recording {
+    
+    private final File file;
+    
+    private final MappedByteBuffer map;
+    
+    private final int version;
+    
+    private final int blocks;
+    
+    private final int[] serials;
+    
+    private final int[] counts;
+    
+    private final long[] minTimes;
+    
+    private final long[] maxTimes;
+    
+    private final int[] minFlows;
+    
+    private final int[] maxFlows;
+    
+    private final long[] offsets;
+    
+    private final long[] times;
+    
+    private final int[] flows;
+    
+    private final int[] setpoints;
+    
+    private final int[] statuses;
+    
+    /**
+     * @param file архивный файл
+     * @throws IOException если файл не удалось прочитать или он повреждён
+     */
+    public BlockFile(File file) throws IOException {
+        
+        FileChannel channel;
+        long size;
+        long indexOffset;
+        int pos;
+        
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            if (size < 8 + BlockCodec.FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a block file");
+            }
+            this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            channel.close();
+        }
+        pos = (int) size - BlockCodec.FOOTER_SIZE;
+        indexOffset = this.map.getLong(pos);
+        this.blocks = this.map.getInt(pos + 8);
+        this.version = this.map.getInt(4);
+        if (this.map.getInt(0) != BlockCodec.MAGIC
+                || (this.version != BlockCodec.VERSION
+                        && this.version != BlockCodec.VERSION_BYTE_STATUS)
+                || this.map.getInt(pos + 12) != BlockCodec.MAGIC || this.blocks < 0
+                || indexOffset + (long) this.blocks * BlockCodec.ENTRY_SIZE != pos) {
+            throw new IOException(file + " is not a block file");
+        }
+        this.serials = new int[this.blocks];
+        this.counts = new int[this.blocks];
+        this.minTimes = new long[this.blocks];
+        this.maxTimes = new long[this.blocks];
+        this.minFlows = new int[this.blocks];
+        this.maxFlows = new int[this.blocks];
+        this.offsets = new long[this.blocks];
+        pos = (int) indexOffset;
+        for (int i = 0; i < this.blocks; i++) {
+            this.serials[i] = this.map.getInt(pos);
+            this.counts[i] = this.map.getInt(pos + 4);
+            this.minTimes[i] = this.map.getLong(pos + 8);
+            this.maxTimes[i] = this.map.getLong(pos + 16);
+            this.minFlows[i] = this.map.getInt(pos + 24);
+            this.maxFlows[i] = this.map.getInt(pos + 28);
+            this.offsets[i] = this.map.getLong(pos + 32);
+            pos = pos + BlockCodec.ENTRY_SIZE;
+        }
+        this.times = new long[BlockCodec.BLOCK_SAMPLES];
+        this.flows = new int[BlockCodec.BLOCK_SAMPLES];
+        this.setpoints = new int[BlockCodec.BLOCK_SAMPLES];
+        this.statuses = new int[BlockCodec.BLOCK_SAMPLES];
+        
+    }
+    
+    @Override
+    public File getFile() {
+        
+        return this.file;
+        
+    }
+    
+    /**
+     * @return количество блоков в файле
+     */
+    public int getBlockCount() {
+        
+        return this.blocks;
+        
+    }
+    
+    /**
+     * @return количество измерений в файле
+     */
+    public long getCount() {
+        
+        long n;
+        
+        n = 0;
+        for (int i = 0; i < this.blocks; i++) {
+            n = n + this.counts[i];
+        }
+        
+        return n;
+        
+    }
+    
+    @Override
+    public long getMinTime() {
+        
+        long time;
+        
+        time = Long.MAX_VALUE;
+        for (long t : this.minTimes) {
+            time = Math.min(time, t);
+        }
+        
+        return time;
+        
+    }
+    
+    @Override
+    public long getMaxTime() {
+        
+        long time;
+        
+        time = Long.MIN_VALUE;
+        for (long t : this.maxTimes) {
+            time = Math.max(time, t);
+        }
+        
+        return time;
+        
+    }
+    
+    @Override
+    public int[] getSerials() {
+        
+        return Arrays.stream(this.serials).distinct().sorted().toArray();
+        
+    }
+    
+    @Override
+    public int scan(int serial, long from, long to, SampleSink sink) {
+        
+        return scan(serial, from, to, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, sink);
+        
+    }
+    
+    /**
+     * Передаёт получателю измерения РРГ за интервал времени с расходом в
+     * указанных пределах. Если пределы не ограничены, передаются и измерения
+     * без расхода (NaN)
+     * @param serial серийный номер РРГ или -1 для всех РРГ
+     * @param from начало интервала, мкс от 1970-01-01 UTC
+     * @param to конец интервала, не включается, мкс
+     * @param minFlow наименьший расход, %
+     * @param maxFlow наибольший расход, %
+     * @param sink получатель измерений
+     * @return количество переданных измерений
+     */
+    public int scan(int serial, long from, long to, float minFlow, float maxFlow,
+            SampleSink sink) {
+        
+        boolean filtered;
+        int n;
+        ByteBuffer in;
+        float flow;
+        
+        filtered = minFlow != Float.NEGATIVE_INFINITY || maxFlow != Float.POSITIVE_INFINITY;
+        n = 0;
+        in = this.map.duplicate();
+        for (int b = 0; b < this.blocks; b++) {
+            if ((serial != -1 && this.serials[b] != serial)
+                    || this.maxTimes[b] < from || this.minTimes[b] >= to) {
+                continue;
+            }
+            if (filtered && (this.minFlows[b] > this.maxFlows[b]
+                    || BlockCodec.restore(this.maxFlows[b]) < minFlow
+                    || BlockCodec.restore(this.minFlows[b]) > maxFlow)) {
+                continue;
+            }
+            in.position((int) this.offsets[b]);
+            BlockCodec.decode(in, this.version, this.counts[b], this.times, this.flows,
+                    this.setpoints, this.statuses);
+            for (int i = 0; i < this.counts[b]; i++) {
+                if (this.times[i] < from || this.times[i] >= to) {
+                    continue;
+                }
+                flow = BlockCodec.restore(this.flows[i]);
+                if (filtered && !(flow >= minFlow && flow <= maxFlow)) {
+                    continue;
+                }
+                sink.sample(this.serials[b], this.times[i], flow,
+                        BlockCodec.restore(this.setpoints[i]), this.statuses[i]);
+                n++;
+            }
+        }
+        
+        return n;
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,266 @@
+package mfc.record;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * Запись архивного файла со сжатыми блоками измерений. Измерения каждого РРГ
+ * накапливаются отдельно и сжимаются {@link BlockCodec} блоками по
+ * {@link BlockCodec#BLOCK_SAMPLES}. После блоков записывается индекс с
+ * серийным номером, интервалом времени и диапазоном расхода каждого блока,
+ * по которому {@link BlockFile} пропускает блоки, не подходящие под запрос.
+ * <p>
+ * Файл записывается под временным именем и переименовывается при закрытии,
+ * поэтому незавершённый архив не может быть принят за готовый.
+ *
+ * @author Лейбо Д.
+ */
+public class BlockWriter implements SampleSink {
+    
+    private final File target;
+    
+    private final File temp;
+    
+    private final DataOutputStream out;
+    
+    private final ByteArrayOutputStream index;
+    
+    private final DataOutputStream indexOut;
+    
+    private final ArrayList<Pending> pending;
+    
+    private final byte[] encoded;
+    
+    private Pending last;
+    
+    private int blocks;
+    
+    private long position;
+    
+    /**
+     * @param target архивный файл
+     * @throws IOException если файл не удалось создать
+     */
+    public BlockWriter(File target) throws IOException {
+        
+        this.target = target;
+        this.temp = new File(target.getPath() + ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.temp),
+                1 << 16));
+        this.index = new ByteArrayOutputStream();
+        this.indexOut = new DataOutputStream(this.index);
+        this.pending = new ArrayList<Pending>();
+        this.encoded = new byte[BlockCodec.BLOCK_SAMPLES * BlockCodec.MAX_SAMPLE_SIZE];
+        this.last = null;
+        this.blocks = 0;
+        this.out.writeInt(BlockCodec.MAGIC);
+        this.out.writeInt(BlockCodec.VERSION);
+        this.position = 8;
+        
+    }
+    
+    /**
+     * Сжимает файл записи в архивный файл с тем же именем и расширением
+     * {@link BlockCodec#EXTENSION}
+     * @param run файл записи
+     * @return архивный файл
+     * @throws IOException если файл записи не удалось прочитать или архив не
+     * удалось записать
+     */
+    public static File compress(File run) throws IOException {
+        
+        RunFile source;
+        BlockWriter writer;
+        String name;
+        File target;
+        
+        source = new RunFile(run);
+        name = run.getName();
+        if (name.endsWith(RunFormat.EXTENSION)) {
+            name = name.substring(0, name.length() - RunFormat.EXTENSION.length());
+        }
+        target = new File(run.getParentFile(), name + BlockCodec.EXTENSION);
+        writer = new BlockWriter(target);
+        try {
+            source.scan(writer);
+        } catch (UncheckedIOException ex) {
+            writer.abort();
+            throw ex.getCause();
+        }
+        writer.close();
+        
+        return target;
+        
+    }
+    
+    /**
+     * Добавляет измерение в архив
+     * @throws UncheckedIOException если заполненный блок не удалось записать
+     */
+    @Override
+    public void sample(int serial, long time, float flow, float setpoint, int status) {
+        
+        Pending p;
+        
+        p = this.last;
+        if (p == null || p.serial != serial) {
+            p = null;
+            for (Pending candidate : this.pending) {
+                if (candidate.serial == serial) {
+                    p = candidate;
+                    break;
+                }
+            }
+            if (p == null) {
+                p = new Pending(serial);
+                this.pending.add(p);
+            }
+            this.last = p;
+        }
+        p.add(time, BlockCodec.quantize(flow), BlockCodec.quantize(setpoint), status);
+        if (p.count == BlockCodec.BLOCK_SAMPLES) {
+            try {
+                writeBlock(p);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        
+    }
+    
+    /**
+     * Записывает оставшиеся блоки и индекс и переименовывает файл
+     * @throws IOException если архив не удалось записать
+     */
+    public void close() throws IOException {
+        
+        try {
+            for (Pending p : this.pending) {
+                if (p.count > 0) {
+                    writeBlock(p);
+                }
+            }
+            this.index.writeTo(this.out);
+            this.out.writeLong(this.position);
+            this.out.writeInt(this.blocks);
+            this.out.writeInt(BlockCodec.MAGIC);
+            this.out.close();
+        } catch (IOException ex) {
+            abort();
+            throw ex;
+        }
+        Files.move(this.temp.toPath(), this.target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        
+    }
+    
+    private void abort() {
+        
+        try {
+            this.out.close();
+        } catch (IOException ex) {
+            // the temporary file is deleted anyway
+        }
+        this.temp.delete();
+        
+    }
+    
+    private void writeBlock(Pending p) throws IOException {
+        
+        int length;
+        
+        length = BlockCodec.encode(p.times, p.flows, p.setpoints, p.statuses, p.count,
+                this.encoded);
+        this.indexOut.writeInt(p.serial);
+        this.indexOut.writeInt(p.count);
+        this.indexOut.writeLong(p.minTime);
+        this.indexOut.writeLong(p.maxTime);
+        this.indexOut.writeInt(p.minFlow);
+        this.indexOut.writeInt(p.maxFlow);
+        this.indexOut.writeLong(this.position);
+        this.indexOut.writeInt(length);
+        this.out.write(this.encoded, 0, length);
+        this.position = this.position + length;
+        this.blocks++;
+        p.clear();
+        
+    }
+    
+    /**
+     * Измерения одного РРГ, ещё не записанные в блок
+     */
+    private static class Pending {
+        
+        private final int serial;
+        
+        private final long[] times;
+        
+        private final int[] flows;
+        
+        private final int[] setpoints;
+        
+        private final int[] statuses;
+        
+        private int count;
+        
+        private long minTime;
+        
+        private long maxTime;
+        
+        /**
+         * Наименьший и наибольший расход блока в сотых долях процента без
+         * учёта отсутствующих значений
+         */
+        private int minFlow;
+        
+        private int maxFlow;
+        
+        Pending(int serial) {
+            
+            this.serial = serial;
+            this.times = new long[BlockCodec.BLOCK_SAMPLES];
+            this.flows = new int[BlockCodec.BLOCK_SAMPLES];
+            this.setpoints = new int[BlockCodec.BLOCK_SAMPLES];
+            this.statuses = new int[BlockCodec.BLOCK_SAMPLES];
+            clear();
+            
+        }
+        
+        void add(long time, int flow, int setpoint, int status) {
+            
+            this.times[this.count] = time;
+            this.flows[this.count] = flow;
+            this.setpoints[this.count] = setpoint;
+            this.statuses[this.count] = status;
+            this.count++;
+            // the codec keeps milliseconds
+            time = Math.floorDiv(time, 1000) * 1000;
+            this.minTime = Math.min(this.minTime, time);
+            this.maxTime = Math.max(this.maxTime, time);
+            if (flow != BlockCodec.MISSING) {
+                this.minFlow = Math.min(this.minFlow, flow);
+                this.maxFlow = Math.max(this.maxFlow, flow);
+            }
+            
+        }
+        
+        void clear() {
+            
+            this.count = 0;
+            this.minTime = Long.MAX_VALUE;
+            this.maxTime = Long.MIN_VALUE;
+            this.minFlow = Integer.MAX_VALUE;
+            this.maxFlow = Integer.MIN_VALUE;
+            
+        }
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,274 @@
+package mfc.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Сводка измерений расхода за интервал времени: количество измерений,
+ * наименьшее, наибольшее, среднее и последнее значение расхода и заданного
+ * расхода. Измерения без расхода (NaN) учитываются отдельно и в значения
+ * расхода не входят.
+ *
+ * @author Лейбо Д.
+ */
+public class FlowSummary implements SampleSink {
+    
+    /**
+     * Размер сводки в файле сводок, байт
+     */
+    static final int SIZE = 80;
+    
+    private long count;
+    
+    private long missing;
+    
+    private long firstTime;
+    
+    private long lastTime;
+    
+    private float minFlow;
+    
+    private float maxFlow;
+    
+    private double sumFlow;
+    
+    private float lastFlow;
+    
+    private long setpoints;
+    
+    private float minSetpoint;
+    
+    private float maxSetpoint;
+    
+    private double sumSetpoint;
+    
+    private float lastSetpoint;
+    
+    public FlowSummary() {
+        
+        clear();
+        
+    }
+    
+    public final void clear() {
+        
+        this.count = 0;
+        this.missing = 0;
+        this.firstTime = Long.MAX_VALUE;
+        this.lastTime = Long.MIN_VALUE;
+        this.minFlow = Float.POSITIVE_INFINITY;
+        this.maxFlow = Float.NEGATIVE_INFINITY;
+        this.sumFlow = 0;
+        this.lastFlow = Float.NaN;
+        this.setpoints = 0;
+        this.minSetpoint = Float.POSITIVE_INFINITY;
+        this.maxSetpoint = Float.NEGATIVE_INFINITY;
+        this.sumSetpoint = 0;
+        this.lastSetpoint = Float.NaN;
+        
+    }
+    
+    /**
+     * Добавляет измерение в сводку
+     * @param time время измерения, мкс
+     * @param flow расход, %, или NaN
+     * @param setpoint заданный расход, %, или NaN
+     */
+    public void add(long time, float flow, float setpoint) {
+        
+        boolean latest;
+        
+        latest = time >= this.lastTime;
+        this.count++;
+        this.firstTime = Math.min(this.firstTime, time);
+        this.lastTime = Math.max(this.lastTime, time);
+        if (Float.isNaN(flow)) {
+            this.missing++;
+        } else {
+            this.minFlow = Math.min(this.minFlow, flow);
+            this.maxFlow = Math.max(this.maxFlow, flow);
+            this.sumFlow = this.sumFlow + flow;
+        }
+        if (!Float.isNaN(setpoint)) {
+            this.setpoints++;
+            this.minSetpoint = Math.min(this.minSetpoint, setpoint);
+            this.maxSetpoint = Math.max(this.maxSetpoint, setpoint);
+            this.sumSetpoint = this.sumSetpoint + setpoint;
+        }
+        if (latest) {
+            this.lastFlow = flow;
+            this.lastSetpoint = setpoint;
+        }
+        
+    }
+    
+    @Override
+    public void sample(int serial, long time, float flow, float setpoint, int status) {
+        
+        add(time, flow, setpoint);
+        
+    }
+    
+    /**
+     * Добавляет в сводку измерения другой сводки
+     * @param other сводка
+     */
+    public void merge(FlowSummary other) {
+        
+        if (other.count == 0) {
+            return;
+        }
+        if (other.lastTime >= this.lastTime) {
+            this.lastFlow = other.lastFlow;
+            this.lastSetpoint = other.lastSetpoint;
+        }
+        this.count = this.count + other.count;
+        this.missing = this.missing + other.missing;
+        this.firstTime = Math.min(this.firstTime, other.firstTime);
+        this.lastTime = Math.max(this.lastTime, other.lastTime);
+        this.minFlow = Math.min(this.minFlow, other.minFlow);
+        this.maxFlow = Math.max(this.maxFlow, other.maxFlow);
+        this.sumFlow = this.sumFlow + other.sumFlow;
+        this.setpoints = this.setpoints + other.setpoints;
+        this.minSetpoint = Math.min(this.minSetpoint, other.minSetpoint);
+        this.maxSetpoint = Math.max(this.maxSetpoint, other.maxSetpoint);
+        this.sumSetpoint = this.sumSetpoint + other.sumSetpoint;
+        
+    }
+    
+    /**
+     * Записывает сводку в буфер, {@link #SIZE} байт
+     * @param buffer буфер
+     * @param pos смещение сводки в буфере
+     */
+    void put(ByteBuffer buffer, int pos) {
+        
+        buffer.putLong(pos, this.count);
+        buffer.putLong(pos + 8, this.missing);
+        buffer.putLong(pos + 16, this.firstTime);
+        buffer.putLong(pos + 24, this.lastTime);
+        buffer.putDouble(pos + 32, this.sumFlow);
+        buffer.putDouble(pos + 40, this.sumSetpoint);
+        buffer.putLong(pos + 48, this.setpoints);
+        buffer.putFloat(pos + 56, this.minFlow);
+        buffer.putFloat(pos + 60, this.maxFlow);
+        buffer.putFloat(pos + 64, this.lastFlow);
+        buffer.putFloat(pos + 68, this.minSetpoint);
+        buffer.putFloat(pos + 72, this.maxSetpoint);
+        buffer.putFloat(pos + 76, this.lastSetpoint);
+        
+    }
+    
+    /**
+     * Читает сводку, записанную {@link #put}
+     * @param buffer буфер
+     * @param pos смещение сводки в буфере
+     */
+    void get(ByteBuffer buffer, int pos) {
+        
+        this.count = buffer.getLong(pos);
+        this.missing = buffer.getLong(pos + 8);
+        this.firstTime = buffer.getLong(pos + 16);
+        this.lastTime = buffer.getLong(pos + 24);
+        this.sumFlow = buffer.getDouble(pos + 32);
+        this.sumSetpoint = buffer.getDouble(pos + 40);
+        this.setpoints = buffer.getLong(pos + 48);
+        this.minFlow = buffer.getFloat(pos + 56);
+        this.maxFlow = buffer.getFloat(pos + 60);
+        this.lastFlow = buffer.getFloat(pos + 64);
+        this.minSetpoint = buffer.getFloat(pos + 68);
+        this.maxSetpoint = buffer.getFloat(pos + 72);
+        this.lastSetpoint = buffer.getFloat(pos + 76);
+        
+    }
+    
+    /**
+     * @return количество измерений, включая измерения без расхода
+     */
+    public long getCount() {
+        
+        return this.count;
+        
+    }
+    
+    /**
+     * @return количество измерений без расхода (ошибок связи)
+     */
+    public long getMissing() {
+        
+        return this.missing;
+        
+    }
+    
+    /**
+     * @return время первого измерения, мкс, или Long.MAX_VALUE
+     */
+    public long getFirstTime() {
+        
+        return this.firstTime;
+        
+    }
+    
+    /**
+     * @return время последнего измерения, мкс, или Long.MIN_VALUE
+     */
+    public long getLastTime() {
+        
+        return this.lastTime;
+        
+    }
+    
+    /**
+     * @return наименьший расход, % или NaN, если расход не измерен
+     */
+    public float getMinFlow() {
+        
+        return this.count > this.missing ? this.minFlow : Float.NaN;
+        
+    }
+    
+    public float getMaxFlow() {
+        
+        return this.count > this.missing ? this.maxFlow : Float.NaN;
+        
+    }
+    
+    public double getMeanFlow() {
+        
+        return this.count > this.missing ? this.sumFlow / (this.count - this.missing) : Double.NaN;
+        
+    }
+    
+    /**
+     * @return расход последнего измерения, % или NaN
+     */
+    public float getLastFlow() {
+        
+        return this.lastFlow;
+        
+    }
+    
+    public float getMinSetpoint() {
+        
+        return this.setpoints > 0 ? this.minSetpoint : Float.NaN;
+        
+    }
+    
+    public float getMaxSetpoint() {
+        
+        return this.setpoints > 0 ? this.maxSetpoint : Float.NaN;
+        
+    }
+    
+    public double getMeanSetpoint() {
+        
+        return this.setpoints > 0 ? this.sumSetpoint / this.setpoints : Double.NaN;
+        
+    }
+    
+    public float getLastSetpoint() {
+        
+        return this.lastSetpoint;
+        
+    }
+    
+}
\ No newline at end of file
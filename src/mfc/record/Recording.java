@@ -0,0 +1,63 @@
+package mfc.record;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Файл с записанными измерениями РРГ: файл записи {@link RunFile} или
+ * архивный файл {@link BlockFile}.
+ *
+ * @author Лейбо Д.
+ */
+public interface Recording {
+    
+    /**
+     * Открывает файл записи или архивный файл по расширению имени
+     * @param file файл
+     * @return открытый файл
+     * @throws IOException если файл не удалось прочитать или его формат
+     * неизвестен
+     */
+    static Recording open(File file) throws IOException {
+        
+        if (file.getName().endsWith(BlockCodec.EXTENSION)) {
+            return new BlockFile(file);
+        } else if (file.getName().endsWith(RunFormat.EXTENSION)) {
+            return new RunFile(file);
+        }
+        
+        throw new IOException(file + " is not a recording");
+        
+    }
+    
+    File getFile();
+    
+    /**
+     * @return наименьшее время измерения в файле, мкс, или Long.MAX_VALUE для
+     * пустого файла
+     */
+    long getMinTime();
+    
+    /**
+     * @return наибольшее время измерения в файле, мкс, или Long.MIN_VALUE для
+     * пустого файла
+     */
+    long getMaxTime();
+    
+    /**
+     * @return серийные номера РРГ, измерения которых есть в файле, по
+     * возрастанию
+     */
+    int[] getSerials();
+    
+    /**
+     * Передаёт получателю измерения РРГ за интервал времени
+     * @param serial серийный номер РРГ или -1 для всех РРГ
+     * @param from начало интервала, мкс от 1970-01-01 UTC
+     * @param to конец интервала, не включается, мкс
+     * @param sink получатель измерений
+     * @return количество переданных измерений
+     */
+    int scan(int serial, long from, long to, SampleSink sink);
+    
+}
\ No newline at end of file
@@ -0,0 +1,259 @@
+package mfc.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Сводки измерений одного РРГ за интервалы {@link #SECOND}, {@link #MINUTE} и
+ * {@link #HOUR}. Измерение добавляется в сводку за текущую секунду; закрытая
+ * сводка за секунду добавляется в сводку за минуту, а закрытая сводка за
+ * минуту - в сводку за час, поэтому все уровни обновляются по мере поступления
+ * измерений, а не пересчитываются по записи.
+ * <p>
+ * Закрытые сводки каждого уровня дописываются в отдельный файл
+ * {@link #fileName} строками по {@link #ROW_SIZE} байт: начало интервала и
+ * {@link FlowSummary}. Строки файла идут в порядке времени. Сводка,
+ * открытая при остановке записи, сохраняется неполной, и при следующем запуске
+ * за тот же интервал добавляется ещё одна строка; при чтении
+ * ({@link RunQuery#rollup}) такие строки объединяются.
+ * <p>
+ * Объект не синхронизирован и используется потоком записи {@link RunRecorder}.
+ *
+ * @author Лейбо Д.
+ */
+public final class Rollups {
+    
+    /**
+     * Длительности интервалов сводок, мкс
+     */
+    public static final long SECOND = 1000000L;
+    
+    public static final long MINUTE = 60 * SECOND;
+    
+    public static final long HOUR = 60 * MINUTE;
+    
+    static final long[] TIERS = {SECOND, MINUTE, HOUR};
+    
+    static final String EXTENSION = ".mfcu";
+    
+    /**
+     * Размер строки файла сводок: начало интервала и сводка
+     */
+    static final int ROW_SIZE = 8 + FlowSummary.SIZE;
+    
+    /**
+     * Количество строк, накапливаемых перед записью в файл
+     */
+    private static final int BUFFERED_ROWS = 64;
+    
+    private static final Logger log;
+    
+    private final File directory;
+    
+    private final int serial;
+    
+    /**
+     * Открытые сводки и начала их интервалов по уровням
+     */
+    private final FlowSummary[] buckets;
+    
+    private final long[] starts;
+    
+    private final FileChannel[] channels;
+    
+    private final ByteBuffer[] rows;
+    
+    /**
+     * true после ошибки записи: сводки продолжают вычисляться, но не
+     * сохраняются
+     */
+    private boolean failed;
+    
+    static {
+        
+        log = Logger.getLogger(Rollups.class.getName());
+        
+    }
+    
+    /**
+     * @param directory каталог записи опроса РРГ
+     * @param serial серийный номер РРГ
+     */
+    Rollups(File directory, int serial) {
+        
+        this.directory = directory;
+        this.serial = serial;
+        this.buckets = new FlowSummary[TIERS.length];
+        this.starts = new long[TIERS.length];
+        this.channels = new FileChannel[TIERS.length];
+        this.rows = new ByteBuffer[TIERS.length];
+        for (int i = 0; i < TIERS.length; i++) {
+            this.buckets[i] = new FlowSummary();
+            this.rows[i] = ByteBuffer.allocate(BUFFERED_ROWS * ROW_SIZE);
+        }
+        this.failed = false;
+        
+    }
+    
+    /**
+     * @param serial серийный номер РРГ
+     * @param tier длительность интервала, мкс
+     * @return имя файла сводок РРГ за интервалы указанной длительности
+     */
+    static String fileName(int serial, long tier) {
+        
+        String name;
+        
+        if (tier % HOUR == 0) {
+            name = tier / HOUR + "h";
+        } else if (tier % MINUTE == 0) {
+            name = tier / MINUTE + "m";
+        } else {
+            name = tier / SECOND + "s";
+        }
+        
+        return "rollup-" + serial + "-" + name + EXTENSION;
+        
+    }
+    
+    /**
+     * @param tier длительность интервала, мкс
+     * @return номер уровня сводок
+     * @throws IllegalArgumentException если сводки за такие интервалы не
+     * вычисляются
+     */
+    static int tierIndex(long tier) {
+        
+        for (int i = 0; i < TIERS.length; i++) {
+            if (TIERS[i] == tier) {
+                return i;
+            }
+        }
+        
+        throw new IllegalArgumentException("No rollups for " + tier + " us");
+        
+    }
+    
+    /**
+     * Добавляет измерение в сводку за текущую секунду
+     * @param time время измерения, мкс
+     * @param flow расход, %, или NaN
+     * @param setpoint заданный расход, %, или NaN
+     */
+    void add(long time, float flow, float setpoint) {
+        
+        long start;
+        
+        start = Math.floorDiv(time, SECOND) * SECOND;
+        if (this.buckets[0].getCount() > 0 && start != this.starts[0]) {
+            closeBucket(0);
+        }
+        this.starts[0] = start;
+        this.buckets[0].add(time, flow, setpoint);
+        
+    }
+    
+    /**
+     * Записывает накопленные строки в файлы
+     */
+    void flush() {
+        
+        for (int i = 0; i < TIERS.length; i++) {
+            write(i);
+        }
+        
+    }
+    
+    /**
+     * Сохраняет открытые сводки неполными и закрывает файлы
+     */
+    void close() {
+        
+        for (int i = 0; i < TIERS.length; i++) {
+            if (this.buckets[i].getCount() > 0) {
+                closeBucket(i);
+            }
+        }
+        flush();
+        for (int i = 0; i < TIERS.length; i++) {
+            if (this.channels[i] != null) {
+                try {
+                    this.channels[i].close();
+                } catch (IOException ex) {
+                    log.warning("Unable to close rollups of " + this.serial + ": " + ex.getMessage());
+                }
+                this.channels[i] = null;
+            }
+        }
+        
+    }
+    
+    /**
+     * Сохраняет сводку уровня и добавляет её в сводку следующего уровня
+     * @param tier номер уровня
+     */
+    private void closeBucket(int tier) {
+        
+        long start;
+        ByteBuffer row;
+        
+        row = this.rows[tier];
+        if (!row.hasRemaining()) {
+            write(tier);
+        }
+        row.putLong(row.position(), this.starts[tier]);
+        this.buckets[tier].put(row, row.position() + 8);
+        row.position(row.position() + ROW_SIZE);
+        if (tier + 1 < TIERS.length) {
+            start = Math.floorDiv(this.starts[tier], TIERS[tier + 1]) * TIERS[tier + 1];
+            if (this.buckets[tier + 1].getCount() > 0 && start != this.starts[tier + 1]) {
+                closeBucket(tier + 1);
+            }
+            this.starts[tier + 1] = start;
+            this.buckets[tier + 1].merge(this.buckets[tier]);
+        }
+        this.buckets[tier].clear();
+        
+    }
+    
+    private void write(int tier) {
+        
+        ByteBuffer row;
+        FileChannel channel;
+        long size;
+        
+        row = this.rows[tier];
+        if (row.position() == 0) {
+            return;
+        }
+        row.flip();
+        try {
+            if (!this.failed) {
+                channel = this.channels[tier];
+                if (channel == null) {
+                    channel = FileChannel.open(new File(this.directory,
+                            fileName(this.serial, TIERS[tier])).toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    // drop a row torn by a crash
+                    size = channel.size();
+                    channel.truncate(size - size % ROW_SIZE);
+                    channel.position(channel.size());
+                    this.channels[tier] = channel;
+                }
+                while (row.hasRemaining()) {
+                    channel.write(row);
+                }
+            }
+        } catch (IOException ex) {
+            log.warning("Unable to save rollups of " + this.serial + ": " + ex.getMessage());
+            this.failed = true;
+        }
+        row.clear();
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,508 @@
+package mfc.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import mfc.model.FrameCodec;
+
+/**
+ * Анализ записанных опросов РРГ по {@link StepReport ступеням} заданного
+ * расхода. Файлы записи и архивные файлы читаются параллельно в пуле
+ * fork/join: каждый файл читается отдельно для каждого РРГ, а ступени,
+ * перешедшие через границу файлов, объединяются. Показатели ступени
+ * накапливаются за один проход и объединяются без повторного чтения
+ * измерений, поэтому время анализа уменьшается пропорционально количеству
+ * ядер.
+ * <p>
+ * Расход и заданный расход приводятся к словам протокола РРГ и
+ * декодируются {@link FrameCodec#decodeFlowWord} и
+ * {@link FrameCodec#decodeSetFlowWord}, как при опросе. Расход, который РРГ
+ * не может передать, считается отсутствующим; ступени с неизвестным
+ * заданным расходом не выводятся.
+ *
+ * @author Лейбо Д.
+ */
+public class RunAnalyzer {
+    
+    /**
+     * Допуск установившегося расхода по умолчанию, %
+     */
+    public static final double DEFAULT_TOLERANCE = 1.0;
+    
+    /**
+     * Слово заданного расхода, который неизвестен
+     */
+    private static final int UNKNOWN = -1;
+    
+    private final ForkJoinPool pool;
+    
+    private volatile double tolerance;
+    
+    public RunAnalyzer() {
+        
+        this(ForkJoinPool.commonPool());
+        
+    }
+    
+    /**
+     * @param pool пул потоков анализа
+     */
+    public RunAnalyzer(ForkJoinPool pool) {
+        
+        this.pool = pool;
+        this.tolerance = DEFAULT_TOLERANCE;
+        
+    }
+    
+    /**
+     * @param tolerance допустимое отклонение установившегося расхода от
+     * заданного, %
+     */
+    public void setTolerance(double tolerance) {
+        
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("Tolerance " + tolerance);
+        }
+        this.tolerance = tolerance;
+        
+    }
+    
+    public double getTolerance() {
+        
+        return this.tolerance;
+        
+    }
+    
+    /**
+     * Анализирует все файлы каталога записи
+     * @param directory каталог записи опроса РРГ
+     * @return ступени по серийному номеру РРГ и времени
+     * @throws IOException если каталог или файл не удалось прочитать
+     */
+    public List<StepReport> analyze(File directory) throws IOException {
+        
+        return analyze(new ArrayList<File>(RunQuery.recordingFiles(directory).values()));
+        
+    }
+    
+    /**
+     * @param files файлы записи и архивные файлы в порядке времени записи
+     * @return ступени по серийному номеру РРГ и времени
+     * @throws IOException если файл не удалось прочитать
+     */
+    public List<StepReport> analyze(List<File> files) throws IOException {
+        
+        try {
+            return this.pool.invoke(new AnalyzeTask(files.toArray(new File[files.size()]),
+                    this.tolerance));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        
+    }
+    
+    /**
+     * @param setpoint заданный расход, % или NaN
+     * @return слово заданного расхода или {@link #UNKNOWN}
+     */
+    private static int setpointWord(float setpoint) {
+        
+        long word;
+        
+        if (Float.isNaN(setpoint)) {
+            return UNKNOWN;
+        }
+        word = Math.round(setpoint * 100.0);
+        
+        return word >= 0 && word <= 0xFFFF ? (int) word : UNKNOWN;
+        
+    }
+    
+    /**
+     * Объединяет ступени соседних участков записи РРГ
+     * @param left ступени предыдущего участка
+     * @param right ступени следующего участка
+     * @return ступени обоих участков
+     */
+    private static ArrayList<Step> concat(ArrayList<Step> left, ArrayList<Step> right) {
+        
+        Step last;
+        Step first;
+        
+        if (left.isEmpty()) {
+            return right;
+        }
+        if (right.isEmpty()) {
+            return left;
+        }
+        last = left.get(left.size() - 1);
+        first = right.get(0);
+        if (last.setpoint == first.setpoint) {
+            last.merge(first);
+            left.addAll(right.subList(1, right.size()));
+        } else {
+            left.addAll(right);
+        }
+        
+        return left;
+        
+    }
+    
+    /**
+     * Определяет РРГ в файлах и запускает анализ каждого РРГ
+     */
+    private static class AnalyzeTask extends RecursiveTask<List<StepReport>> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final File[] files;
+        
+        private final double tolerance;
+        
+        AnalyzeTask(File[] files, double tolerance) {
+            
+            this.files = files;
+            this.tolerance = tolerance;
+            
+        }
+        
+        @Override
+        protected List<StepReport> compute() {
+            
+            ArrayList<SerialsTask> serialsTasks;
+            TreeMap<Integer, ArrayList<File>> serials;
+            ArrayList<StepsTask> stepsTasks;
+            ArrayList<File> found;
+            ArrayList<StepReport> reports;
+            int previous;
+            
+            serialsTasks = new ArrayList<SerialsTask>();
+            for (File file : this.files) {
+                serialsTasks.add(new SerialsTask(file));
+            }
+            invokeAll(serialsTasks);
+            serials = new TreeMap<Integer, ArrayList<File>>();
+            for (int i = 0; i < this.files.length; i++) {
+                for (int serial : serialsTasks.get(i).join()) {
+                    serials.computeIfAbsent(serial, s -> new ArrayList<File>()).add(this.files[i]);
+                }
+            }
+            stepsTasks = new ArrayList<StepsTask>();
+            for (Map.Entry<Integer, ArrayList<File>> entry : serials.entrySet()) {
+                found = entry.getValue();
+                stepsTasks.add(new StepsTask(entry.getKey(), found.toArray(new File[found.size()]),
+                        0, found.size(), this.tolerance));
+            }
+            invokeAll(stepsTasks);
+            reports = new ArrayList<StepReport>();
+            for (StepsTask task : stepsTasks) {
+                previous = UNKNOWN;
+                for (Step step : task.join()) {
+                    if (step.setpoint != UNKNOWN) {
+                        reports.add(step.report(previous));
+                    }
+                    previous = step.setpoint;
+                }
+            }
+            
+            return reports;
+            
+        }
+        
+    }
+    
+    private static class SerialsTask extends RecursiveTask<int[]> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final File file;
+        
+        SerialsTask(File file) {
+            
+            this.file = file;
+            
+        }
+        
+        @Override
+        protected int[] compute() {
+            
+            try {
+                return Recording.open(this.file).getSerials();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Ступени одного РРГ в последовательных файлах. Файлы делятся пополам,
+     * пока не останется один файл
+     */
+    private static class StepsTask extends RecursiveTask<ArrayList<Step>> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int serial;
+        
+        private final File[] files;
+        
+        private final int from;
+        
+        private final int to;
+        
+        private final double tolerance;
+        
+        StepsTask(int serial, File[] files, int from, int to, double tolerance) {
+            
+            this.serial = serial;
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.tolerance = tolerance;
+            
+        }
+        
+        @Override
+        protected ArrayList<Step> compute() {
+            
+            StepsTask left;
+            ArrayList<Step> right;
+            int mid;
+            
+            if (this.to - this.from == 1) {
+                return scan(this.files[this.from]);
+            }
+            mid = (this.from + this.to) >>> 1;
+            left = new StepsTask(this.serial, this.files, this.from, mid, this.tolerance);
+            left.fork();
+            right = new StepsTask(this.serial, this.files, mid, this.to, this.tolerance).compute();
+            
+            return concat(left.join(), right);
+            
+        }
+        
+        private ArrayList<Step> scan(File file) {
+            
+            ArrayList<Step> steps;
+            Recording recording;
+            
+            steps = new ArrayList<Step>();
+            try {
+                // each task opens its own copy, archives are not thread-safe
+                recording = Recording.open(file);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            recording.scan(this.serial, Long.MIN_VALUE, Long.MAX_VALUE,
+                    (serial, time, flow, setpoint, status) -> {
+                Step step;
+                int word;
+                word = setpointWord(setpoint);
+                step = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+                if (step == null || step.setpoint != word) {
+                    step = new Step(serial, word, time, this.tolerance);
+                    steps.add(step);
+                }
+                step.add(time, flow);
+            });
+            
+            return steps;
+            
+        }
+        
+    }
+    
+    /**
+     * Накопленные показатели ступени или её части. Среднее и сумма квадратов
+     * отклонений накапливаются по Уэлфорду и объединяются по формулам Чана
+     */
+    private static class Step {
+        
+        private final int serial;
+        
+        private final int setpoint;
+        
+        private final double band;
+        
+        private long start;
+        
+        private long end;
+        
+        private long samples;
+        
+        private long missing;
+        
+        private long count;
+        
+        private double mean;
+        
+        private double m2;
+        
+        private double min;
+        
+        private double max;
+        
+        /**
+         * true, если расход выходил за допуск
+         */
+        private boolean outside;
+        
+        /**
+         * Показатели измерений после последнего выхода за допуск и время
+         * первого из них
+         */
+        private long settledCount;
+        
+        private double settledMean;
+        
+        private double settledM2;
+        
+        private long settledFrom;
+        
+        Step(int serial, int setpoint, long start, double tolerance) {
+            
+            this.serial = serial;
+            this.setpoint = setpoint;
+            // flows are multiples of 0.01 %, keep them off the band edge
+            this.band = tolerance + 1e-6;
+            this.start = start;
+            this.end = start;
+            this.min = Double.POSITIVE_INFINITY;
+            this.max = Double.NEGATIVE_INFINITY;
+            this.outside = false;
+            
+        }
+        
+        void add(long time, float flow) {
+            
+            int word;
+            double value;
+            double delta;
+            
+            this.end = time;
+            this.samples++;
+            word = Float.isNaN(flow) ? -1 : FrameCodec.encodeFlowWord(flow);
+            if (word < 0) {
+                this.missing++;
+                return;
+            }
+            value = FrameCodec.decodeFlowWord(word);
+            this.count++;
+            delta = value - this.mean;
+            this.mean = this.mean + delta / this.count;
+            this.m2 = this.m2 + delta * (value - this.mean);
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+            if (this.setpoint != UNKNOWN
+                    && Math.abs(value - FrameCodec.decodeSetFlowWord(this.setpoint)) > this.band) {
+                this.outside = true;
+                this.settledCount = 0;
+                this.settledMean = 0;
+                this.settledM2 = 0;
+            } else {
+                if (this.settledCount == 0) {
+                    this.settledFrom = time;
+                }
+                this.settledCount++;
+                delta = value - this.settledMean;
+                this.settledMean = this.settledMean + delta / this.settledCount;
+                this.settledM2 = this.settledM2 + delta * (value - this.settledMean);
+            }
+            
+        }
+        
+        /**
+         * Добавляет к ступени её продолжение из следующего участка записи
+         * @param next продолжение ступени
+         */
+        void merge(Step next) {
+            
+            double delta;
+            long n;
+            
+            this.end = next.end;
+            this.samples = this.samples + next.samples;
+            this.missing = this.missing + next.missing;
+            n = this.count + next.count;
+            if (n > 0) {
+                delta = next.mean - this.mean;
+                this.mean = this.mean + delta * next.count / n;
+                this.m2 = this.m2 + next.m2 + delta * delta * this.count * next.count / n;
+                this.count = n;
+            }
+            this.min = Math.min(this.min, next.min);
+            this.max = Math.max(this.max, next.max);
+            if (next.outside) {
+                this.settledCount = next.settledCount;
+                this.settledMean = next.settledMean;
+                this.settledM2 = next.settledM2;
+                this.settledFrom = next.settledFrom;
+            } else {
+                n = this.settledCount + next.settledCount;
+                if (this.settledCount == 0) {
+                    this.settledFrom = next.settledFrom;
+                }
+                if (n > 0) {
+                    delta = next.settledMean - this.settledMean;
+                    this.settledMean = this.settledMean + delta * next.settledCount / n;
+                    this.settledM2 = this.settledM2 + next.settledM2
+                            + delta * delta * this.settledCount * next.settledCount / n;
+                    this.settledCount = n;
+                }
+            }
+            this.outside = this.outside || next.outside;
+            
+        }
+        
+        /**
+         * @param previous слово заданного расхода предыдущей ступени
+         * @return показатели ступени
+         */
+        StepReport report(int previous) {
+            
+            double target;
+            double before;
+            double overshoot;
+            long n;
+            double mean;
+            double m2;
+            long settlingTime;
+            
+            target = FrameCodec.decodeSetFlowWord(this.setpoint);
+            before = previous == UNKNOWN ? Double.NaN : FrameCodec.decodeSetFlowWord(previous);
+            if (previous == UNKNOWN || this.count == 0) {
+                overshoot = Double.NaN;
+            } else if (target > before) {
+                overshoot = Math.max(0, this.max - target);
+            } else {
+                overshoot = Math.max(0, target - this.min);
+            }
+            if (this.settledCount > 0) {
+                n = this.settledCount;
+                mean = this.settledMean;
+                m2 = this.settledM2;
+                settlingTime = this.settledFrom - this.start;
+            } else {
+                n = this.count;
+                mean = this.mean;
+                m2 = this.m2;
+                settlingTime = -1;
+            }
+            
+            return new StepReport(this.serial, this.start, this.end, target, before,
+                    this.samples, this.missing, n > 0 ? mean : Double.NaN,
+                    n > 0 ? Math.sqrt(m2 / n) : Double.NaN, overshoot, settlingTime);
+                    
+        }
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,300 @@
+package mfc.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Файл записи опроса РРГ формата {@link RunFormat}, открытый для чтения.
+ * Отображаются в память только сохранённые записи; файл, в который ещё
+ * ведётся запись, читается до последнего сброса на диск.
+ * <p>
+ * Разреженный индекс времени читается при открытии файла, поэтому запрос за
+ * интервал времени читает только группы записей, пересекающиеся с ним. Для
+ * файла без индекса индекс строится при открытии по самим записям.
+ *
+ * @author Лейбо Д.
+ */
+public class RunFile implements Recording {
+    
+    private final File file;
+    
+    private final MappedByteBuffer map;
+    
+    private final long startTime;
+    
+    private final int count;
+    
+    private final long capacity;
+    
+    /**
+     * Количество записей в группе индекса
+     */
+    private final int stride;
+    
+    /**
+     * Наименьшее и наибольшее время групп записей, мкс
+     */
+    private final long[] minTimes;
+    
+    private final long[] maxTimes;
+    
+    /**
+     * @param file файл записи
+     * @throws IOException если файл не удалось прочитать или он не является
+     * файлом записи
+     */
+    public RunFile(File file) throws IOException {
+        
+        FileChannel channel;
+        MappedByteBuffer header;
+        MappedByteBuffer index;
+        long stored;
+        long indexOffset;
+        int stride;
+        int entries;
+        
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() < RunFormat.HEADER_SIZE) {
+                throw new IOException(file + " is not a run file");
+            }
+            header = channel.map(FileChannel.MapMode.READ_ONLY, 0, RunFormat.HEADER_SIZE);
+            if (!RunFormat.checkHeader(header)) {
+                throw new IOException(file + " is not a run file");
+            }
+            this.startTime = header.getLong(RunFormat.START_TIME_OFFSET);
+            stored = header.getLong(RunFormat.COUNT_OFFSET);
+            stored = Math.min(stored, (channel.size() - RunFormat.HEADER_SIZE) / RunFormat.RECORD_SIZE);
+            this.count = (int) Math.max(0, stored);
+            this.capacity = header.getLong(RunFormat.CAPACITY_OFFSET);
+            this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, RunFormat.offset(this.count));
+            indexOffset = header.getLong(RunFormat.INDEX_OFFSET);
+            stride = header.getInt(RunFormat.STRIDE_OFFSET);
+            if (indexOffset > 0 && stride > 0) {
+                entries = (this.count + stride - 1) / stride;
+                if (indexOffset + (long) entries * RunFormat.ENTRY_SIZE > channel.size()) {
+                    throw new IOException(file + " has a damaged time index");
+                }
+                index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                        (long) entries * RunFormat.ENTRY_SIZE);
+            } else {
+                stride = RunFormat.INDEX_STRIDE;
+                entries = (this.count + stride - 1) / stride;
+                index = null;
+            }
+        } finally {
+            channel.close();
+        }
+        this.stride = stride;
+        this.minTimes = new long[entries];
+        this.maxTimes = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            if (index != null) {
+                this.minTimes[i] = index.getLong(i * RunFormat.ENTRY_SIZE);
+                this.maxTimes[i] = index.getLong(i * RunFormat.ENTRY_SIZE + 8);
+            } else {
+                indexStretch(i);
+            }
+        }
+        
+    }
+    
+    @Override
+    public File getFile() {
+        
+        return this.file;
+        
+    }
+    
+    /**
+     * @return время создания файла, мкс от 1970-01-01 UTC
+     */
+    public long getStartTime() {
+        
+        return this.startTime;
+        
+    }
+    
+    /**
+     * @return количество сохранённых записей
+     */
+    public int getCount() {
+        
+        return this.count;
+        
+    }
+    
+    /**
+     * @return true, если файл заполнен и больше не изменится
+     */
+    public boolean isComplete() {
+        
+        return this.count >= this.capacity;
+        
+    }
+    
+    @Override
+    public long getMinTime() {
+        
+        long time;
+        
+        time = Long.MAX_VALUE;
+        for (long t : this.minTimes) {
+            time = Math.min(time, t);
+        }
+        
+        return time;
+        
+    }
+    
+    @Override
+    public long getMaxTime() {
+        
+        long time;
+        
+        time = Long.MIN_VALUE;
+        for (long t : this.maxTimes) {
+            time = Math.max(time, t);
+        }
+        
+        return time;
+        
+    }
+    
+    /**
+     * {@inheritDoc} Для получения номеров читаются все записи файла
+     */
+    @Override
+    public int[] getSerials() {
+        
+        int[] serials;
+        int n;
+        int serial;
+        
+        serials = new int[8];
+        n = 0;
+        for (int i = 0; i < this.count; i++) {
+            serial = this.map.getInt((int) RunFormat.offset(i) + RunFormat.SERIAL);
+            // few controllers write to one file, a linear search is enough
+            if (n == 0 || (serials[n - 1] != serial && !contains(serials, n, serial))) {
+                if (n == serials.length) {
+                    serials = Arrays.copyOf(serials, n * 2);
+                }
+                serials[n++] = serial;
+            }
+        }
+        serials = Arrays.copyOf(serials, n);
+        Arrays.sort(serials);
+        
+        return serials;
+        
+    }
+    
+    /**
+     * {@inheritDoc} Читаются только группы записей, интервал времени которых
+     * пересекается с запрошенным
+     */
+    @Override
+    public int scan(int serial, long from, long to, SampleSink sink) {
+        
+        int n;
+        int pos;
+        int end;
+        long time;
+        
+        n = 0;
+        for (int g = 0; g < this.minTimes.length; g++) {
+            if (this.maxTimes[g] < from || this.minTimes[g] >= to) {
+                continue;
+            }
+            end = (int) Math.min((long) (g + 1) * this.stride, this.count);
+            for (int i = g * this.stride; i < end; i++) {
+                pos = (int) RunFormat.offset(i);
+                time = this.map.getLong(pos + RunFormat.TIME);
+                if (time < from || time >= to
+                        || (serial != -1 && this.map.getInt(pos + RunFormat.SERIAL) != serial)) {
+                    continue;
+                }
+                sink.sample(this.map.getInt(pos + RunFormat.SERIAL), time,
+                        this.map.getFloat(pos + RunFormat.FLOW),
+                        this.map.getFloat(pos + RunFormat.SETPOINT),
+                        RunFormat.status(this.map.get(pos + RunFormat.STATUS),
+                                this.map.get(pos + RunFormat.STATUS_KNOWN)));
+                n++;
+            }
+        }
+        
+        return n;
+        
+    }
+    
+    /**
+     * Передаёт получателю записи с указанными номерами
+     * @param from номер первой записи
+     * @param to номер записи, следующей за последней
+     * @param sink получатель измерений
+     */
+    public void scan(int from, int to, SampleSink sink) {
+        
+        int pos;
+        
+        for (int i = Math.max(0, from); i < Math.min(to, this.count); i++) {
+            pos = (int) RunFormat.offset(i);
+            sink.sample(this.map.getInt(pos + RunFormat.SERIAL),
+                    this.map.getLong(pos + RunFormat.TIME),
+                    this.map.getFloat(pos + RunFormat.FLOW),
+                    this.map.getFloat(pos + RunFormat.SETPOINT),
+                    RunFormat.status(this.map.get(pos + RunFormat.STATUS),
+                            this.map.get(pos + RunFormat.STATUS_KNOWN)));
+        }
+        
+    }
+    
+    /**
+     * Передаёт получателю все сохранённые записи
+     * @param sink получатель измерений
+     */
+    public void scan(SampleSink sink) {
+        
+        scan(0, this.count, sink);
+        
+    }
+    
+    private static boolean contains(int[] values, int n, int value) {
+        
+        for (int i = 0; i < n; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        
+        return false;
+        
+    }
+    
+    /**
+     * Вычисляет интервал времени группы записей для файла без индекса
+     * @param g номер группы
+     */
+    private void indexStretch(int g) {
+        
+        int end;
+        long time;
+        
+        this.minTimes[g] = Long.MAX_VALUE;
+        this.maxTimes[g] = Long.MIN_VALUE;
+        end = (int) Math.min((long) (g + 1) * this.stride, this.count);
+        for (int i = g * this.stride; i < end; i++) {
+            time = this.map.getLong((int) RunFormat.offset(i) + RunFormat.TIME);
+            this.minTimes[g] = Math.min(this.minTimes[g], time);
+            this.maxTimes[g] = Math.max(this.maxTimes[g], time);
+        }
+        
+    }
+    
+}
\ No newline at end of file
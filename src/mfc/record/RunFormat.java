@@ -0,0 +1,186 @@
+package mfc.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Формат файла записи опроса РРГ. Файл начинается с заголовка размером
+ * {@link #HEADER_SIZE}, за которым следуют записи фиксированной длины
+ * {@link #RECORD_SIZE}, а в конце файла находится разреженный индекс времени:
+ * наименьшее и наибольшее время каждых {@link #INDEX_STRIDE} записей
+ * ({@link #ENTRY_SIZE} байт на группу). Числа записываются старшим байтом
+ * вперёд.
+ * <p>
+ * Заголовок:
+ * <pre>
+ *  0  int  MAGIC
+ *  4  int  VERSION
+ *  8  int  RECORD_SIZE
+ * 12  int  HEADER_SIZE
+ * 16  long время создания файла, мкс от 1970-01-01 UTC
+ * 24  long количество сохранённых записей
+ * 32  long количество мест для записей в файле
+ * 40  long смещение индекса времени или 0, если индекса нет
+ * 48  int  количество записей в группе индекса
+ * </pre>
+ * Запись:
+ * <pre>
+ *  0  long время измерения, мкс от 1970-01-01 UTC
+ *  8  int  серийный номер РРГ
+ * 12  float расход, %, или NaN при ошибке связи
+ * 16  float заданный расход, %, или NaN
+ * 20  byte байт статуса РРГ (режим клапана) или -1
+ * 21  byte 1, если байт статуса известен, иначе 0
+ * 22  2 байта резерв
+ * </pre>
+ * Признак известного статуса нужен, так как байт статуса может быть равен
+ * -1 (0xFF). В файлах, записанных до его введения, на его месте 0, а байт
+ * статуса -1 означает, что статус неизвестен.
+ * <p>
+ * Количество записей в заголовке обновляется только после сброса записей и
+ * индекса на диск, поэтому после сбоя файл содержит все записи до последнего
+ * сброса.
+ *
+ * @author Лейбо Д.
+ */
+final class RunFormat {
+    
+    static final int MAGIC = 0x4D464352; // "MFCR"
+    
+    static final int VERSION = 1;
+    
+    static final int HEADER_SIZE = 4096;
+    
+    static final int RECORD_SIZE = 24;
+    
+    static final String EXTENSION = ".mfcr";
+    
+    static final int START_TIME_OFFSET = 16;
+    
+    static final int COUNT_OFFSET = 24;
+    
+    static final int CAPACITY_OFFSET = 32;
+    
+    static final int INDEX_OFFSET = 40;
+    
+    static final int STRIDE_OFFSET = 48;
+    
+    /**
+     * Количество записей в группе индекса времени
+     */
+    static final int INDEX_STRIDE = 1024;
+    
+    /**
+     * Размер записи индекса: наименьшее и наибольшее время группы
+     */
+    static final int ENTRY_SIZE = 16;
+    
+    static final int TIME = 0;
+    
+    static final int SERIAL = 8;
+    
+    static final int FLOW = 12;
+    
+    static final int SETPOINT = 16;
+    
+    static final int STATUS = 20;
+    
+    static final int STATUS_KNOWN = 21;
+    
+    private RunFormat() {
+    }
+    
+    /**
+     * @param index номер записи
+     * @return смещение записи от начала файла
+     */
+    static long offset(long index) {
+        
+        return HEADER_SIZE + index * RECORD_SIZE;
+        
+    }
+    
+    /**
+     * @param fileSize размер файла, байт
+     * @return количество мест для записей в файле с индексом времени
+     */
+    static long capacity(long fileSize) {
+        
+        long capacity;
+        
+        capacity = (fileSize - HEADER_SIZE) * INDEX_STRIDE
+                / ((long) RECORD_SIZE * INDEX_STRIDE + ENTRY_SIZE);
+        while (capacity > 0 && indexOffset(capacity) + entries(capacity) * ENTRY_SIZE > fileSize) {
+            capacity--;
+        }
+        
+        return capacity;
+        
+    }
+    
+    /**
+     * @param capacity количество мест для записей
+     * @return смещение индекса времени
+     */
+    static long indexOffset(long capacity) {
+        
+        return offset(capacity);
+        
+    }
+    
+    /**
+     * @param count количество записей
+     * @return количество групп индекса для указанного количества записей
+     */
+    static long entries(long count) {
+        
+        return (count + INDEX_STRIDE - 1) / INDEX_STRIDE;
+        
+    }
+    
+    /**
+     * @param status байт статуса из записи
+     * @param known признак известного статуса из записи
+     * @return байт статуса РРГ без знака или -1, если он неизвестен
+     */
+    static int status(byte status, byte known) {
+        
+        return known != 0 || status != -1 ? status & 0xFF : -1;
+        
+    }
+    
+    /**
+     * Записывает заголовок пустого файла
+     * @param buffer отображение файла
+     * @param startTime время создания файла, мкс
+     * @param capacity количество мест для записей
+     * @param indexOffset смещение индекса времени
+     */
+    static void putHeader(ByteBuffer buffer, long startTime, long capacity, long indexOffset) {
+        
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, RECORD_SIZE);
+        buffer.putInt(12, HEADER_SIZE);
+        buffer.putLong(START_TIME_OFFSET, startTime);
+        buffer.putLong(COUNT_OFFSET, 0);
+        buffer.putLong(CAPACITY_OFFSET, capacity);
+        buffer.putLong(INDEX_OFFSET, indexOffset);
+        buffer.putInt(STRIDE_OFFSET, INDEX_STRIDE);
+        
+    }
+    
+    /**
+     * @param buffer начало файла
+     * @return true, если заголовок соответствует формату
+     */
+    static boolean checkHeader(ByteBuffer buffer) {
+        
+        return buffer.limit() >= HEADER_SIZE
+                && buffer.getInt(0) == MAGIC
+                && buffer.getInt(4) == VERSION
+                && buffer.getInt(8) == RECORD_SIZE
+                && buffer.getInt(12) == HEADER_SIZE;
+        
+    }
+    
+}
\ No newline at end of file
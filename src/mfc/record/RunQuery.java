@@ -0,0 +1,253 @@
+package mfc.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Запросы измерений из каталога записи опроса РРГ за интервал времени. В
+ * запросе участвуют файлы записи и архивные файлы каталога; если файл записи
+ * уже сжат, читается только архивный файл. Файлы, интервал времени которых не
+ * пересекается с запрошенным, пропускаются, а внутри файлов читаются только
+ * группы записей или блоки, подходящие по индексу. Открытые файлы
+ * отображаются в память и используются повторно; файл, в который ещё ведётся
+ * запись, открывается заново при каждом запросе.
+ * <p>
+ * Для обзора длительных интервалов служат {@link #rollup сводки} за секунду,
+ * минуту и час, которые {@link RunRecorder} сохраняет по мере записи.
+ *
+ * @author Лейбо Д.
+ */
+public class RunQuery {
+    
+    private static final Logger log;
+    
+    private final File directory;
+    
+    /**
+     * Открытые файлы по имени без расширения, в порядке времени создания
+     */
+    private final TreeMap<String, Recording> recordings;
+    
+    static {
+        
+        log = Logger.getLogger(RunQuery.class.getName());
+        
+    }
+    
+    /**
+     * @param directory каталог записи опроса РРГ
+     */
+    public RunQuery(File directory) {
+        
+        this.directory = directory;
+        this.recordings = new TreeMap<String, Recording>();
+        
+    }
+    
+    /**
+     * Передаёт получателю измерения РРГ за интервал времени
+     * @param serial серийный номер РРГ или -1 для всех РРГ
+     * @param from начало интервала, мкс от 1970-01-01 UTC
+     * @param to конец интервала, не включается, мкс
+     * @param sink получатель измерений
+     * @return количество переданных измерений
+     * @throws IOException если каталог не удалось прочитать
+     */
+    public synchronized long samples(int serial, long from, long to, SampleSink sink)
+            throws IOException {
+        
+        long n;
+        
+        refresh();
+        n = 0;
+        for (Recording recording : this.recordings.values()) {
+            if (recording.getMaxTime() >= from && recording.getMinTime() < to) {
+                n = n + recording.scan(serial, from, to, sink);
+            }
+        }
+        
+        return n;
+        
+    }
+    
+    /**
+     * @param serial серийный номер РРГ или -1 для всех РРГ
+     * @param from начало интервала, мкс от 1970-01-01 UTC
+     * @param to конец интервала, не включается, мкс
+     * @return сводка измерений РРГ за интервал времени
+     * @throws IOException если каталог не удалось прочитать
+     */
+    public FlowSummary aggregate(int serial, long from, long to) throws IOException {
+        
+        FlowSummary summary;
+        
+        summary = new FlowSummary();
+        samples(serial, from, to, summary);
+        
+        return summary;
+        
+    }
+    
+    /**
+     * Читает сохранённые сводки РРГ. Сводка за интервал, в котором ещё идёт
+     * запись, появляется после окончания интервала
+     * @param serial серийный номер РРГ
+     * @param tier длительность интервала сводки: {@link Rollups#SECOND},
+     * {@link Rollups#MINUTE} или {@link Rollups#HOUR}
+     * @param from начало периода, мкс от 1970-01-01 UTC
+     * @param to конец периода, не включается, мкс
+     * @return сводки по интервалам в порядке времени. Начало интервала
+     * сводки - время её первого измерения, округлённое вниз до длительности
+     * интервала
+     * @throws IOException если файл сводок не удалось прочитать
+     */
+    public List<FlowSummary> rollup(int serial, long tier, long from, long to) throws IOException {
+        
+        File file;
+        FileChannel channel;
+        MappedByteBuffer map;
+        ArrayList<FlowSummary> result;
+        FlowSummary row;
+        FlowSummary current;
+        long currentStart;
+        long start;
+        int rows;
+        int low;
+        int high;
+        int mid;
+        
+        Rollups.tierIndex(tier);
+        result = new ArrayList<FlowSummary>();
+        file = new File(this.directory, Rollups.fileName(serial, tier));
+        if (!file.isFile()) {
+            return result;
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            rows = (int) (channel.size() / Rollups.ROW_SIZE);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) rows * Rollups.ROW_SIZE);
+        } finally {
+            channel.close();
+        }
+        from = Math.floorDiv(from, tier) * tier;
+        // the first row of the interval
+        low = 0;
+        high = rows;
+        while (low < high) {
+            mid = (low + high) >>> 1;
+            if (map.getLong(mid * Rollups.ROW_SIZE) < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        row = new FlowSummary();
+        current = null;
+        currentStart = Long.MIN_VALUE;
+        for (int i = low; i < rows; i++) {
+            start = map.getLong(i * Rollups.ROW_SIZE);
+            if (start >= to) {
+                break;
+            }
+            row.get(map, i * Rollups.ROW_SIZE + 8);
+            if (current == null || start != currentStart) {
+                current = new FlowSummary();
+                currentStart = start;
+                result.add(current);
+            }
+            current.merge(row);
+        }
+        
+        return result;
+        
+    }
+    
+    /**
+     * Открывает новые файлы каталога и закрывает удалённые
+     */
+    private void refresh() throws IOException {
+        
+        TreeMap<String, File> found;
+        File file;
+        Recording recording;
+        Iterator<Map.Entry<String, Recording>> it;
+        Map.Entry<String, Recording> cached;
+        
+        found = recordingFiles(this.directory);
+        it = this.recordings.entrySet().iterator();
+        while (it.hasNext()) {
+            cached = it.next();
+            if (!cached.getValue().getFile().equals(found.get(cached.getKey()))) {
+                it.remove();
+            }
+        }
+        for (Map.Entry<String, File> entry : found.entrySet()) {
+            file = entry.getValue();
+            recording = this.recordings.get(entry.getKey());
+            if (recording instanceof BlockFile
+                    || (recording instanceof RunFile && ((RunFile) recording).isComplete())) {
+                continue;
+            }
+            try {
+                this.recordings.put(entry.getKey(), Recording.open(file));
+            } catch (IOException ex) {
+                // a file may be just created or still being compressed
+                log.fine("Skipping " + file + ": " + ex.getMessage());
+                this.recordings.remove(entry.getKey());
+            }
+        }
+        
+    }
+    
+    /**
+     * @param directory каталог записи опроса РРГ
+     * @return файлы записи и архивные файлы каталога по имени без расширения.
+     * Если файл записи уже сжат, в результат входит только архивный файл
+     * @throws IOException если каталог не удалось прочитать
+     */
+    static TreeMap<String, File> recordingFiles(File directory) throws IOException {
+        
+        File[] files;
+        TreeMap<String, File> found;
+        String name;
+        String stem;
+        
+        files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        found = new TreeMap<String, File>();
+        for (File f : files) {
+            name = f.getName();
+            if (name.endsWith(BlockCodec.EXTENSION)) {
+                stem = name.substring(0, name.length() - BlockCodec.EXTENSION.length());
+                found.put(stem, f);
+            } else if (name.endsWith(RunFormat.EXTENSION)) {
+                stem = name.substring(0, name.length() - RunFormat.EXTENSION.length());
+                // an archive supersedes the raw file it was compressed from
+                if (!found.containsKey(stem) || !isArchive(found.get(stem))) {
+                    found.put(stem, f);
+                }
+            }
+        }
+        
+        return found;
+        
+    }
+    
+    private static boolean isArchive(File file) {
+        
+        return file.getName().endsWith(BlockCodec.EXTENSION);
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,466 @@
+package mfc.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import mfc.model.FlowHistory;
+import mfc.model.MFC;
+
+/**
+ * Запись опроса РРГ в двоичные файлы формата {@link RunFormat}. Измерения
+ * забираются из {@link MFC#getHistory() истории} каждого РРГ отдельным потоком
+ * с периодом {@link #DRAIN_PERIOD} и записываются в отображённый в память файл
+ * без форматирования строк, поэтому запись не замедляет опрос. Записи
+ * сбрасываются на диск с периодом {@link #FLUSH_PERIOD}. Заполненный файл
+ * закрывается, и запись продолжается в новом файле того же каталога.
+ * <p>
+ * Одновременно для каждого РРГ вычисляются {@link Rollups сводки} за секунду,
+ * минуту и час, которые сохраняются в том же каталоге.
+ *
+ * @author Лейбо Д.
+ */
+public class RunRecorder {
+    
+    /**
+     * Размер файла записи по умолчанию, около 2.8 млн измерений
+     */
+    public static final long DEFAULT_FILE_SIZE = 64L << 20;
+    
+    /**
+     * Период переноса измерений из истории РРГ в файл, мс
+     */
+    public static final long DRAIN_PERIOD = 250;
+    
+    /**
+     * Период сброса записей на диск, мс
+     */
+    public static final long FLUSH_PERIOD = 1000;
+    
+    /**
+     * Количество измерений, переносимых из истории за одно чтение
+     */
+    private static final int BATCH = 1024;
+    
+    private static final Logger log;
+    
+    private final File directory;
+    
+    private final long fileSize;
+    
+    private final CopyOnWriteArrayList<Source> sources;
+    
+    private final ScheduledExecutorService writer;
+    
+    private final long[] times;
+    
+    private final float[] flows;
+    
+    private final float[] setpoints;
+    
+    private final int[] statuses;
+    
+    /**
+     * Системное время, мкс, и соответствующее ему значение System.nanoTime()
+     * для перевода времени измерений
+     */
+    private final long wallAnchor;
+    
+    private final long nanoAnchor;
+    
+    private File file;
+    
+    private MappedByteBuffer map;
+    
+    private long capacity;
+    
+    private long indexOffset;
+    
+    /**
+     * Наименьшее и наибольшее время текущей группы индекса
+     */
+    private long stretchMin;
+    
+    private long stretchMax;
+    
+    private long count;
+    
+    private long flushed;
+    
+    private long lastFlush;
+    
+    private volatile long records;
+    
+    private volatile long lostSamples;
+    
+    /**
+     * true - сжимать заполненные файлы в архивные
+     */
+    private volatile boolean compression;
+    
+    static {
+        
+        log = Logger.getLogger(RunRecorder.class.getName());
+        
+    }
+    
+    /**
+     * @param directory каталог для файлов записи, создаётся при необходимости
+     * @param fileSize размер одного файла, байт, не больше 2 ГБ
+     */
+    public RunRecorder(File directory, long fileSize) {
+        
+        if (RunFormat.capacity(fileSize) < 1 || fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Wrong file size: " + fileSize);
+        }
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.sources = new CopyOnWriteArrayList<Source>();
+        this.times = new long[BATCH];
+        this.flows = new float[BATCH];
+        this.setpoints = new float[BATCH];
+        this.statuses = new int[BATCH];
+        this.nanoAnchor = System.nanoTime();
+        this.wallAnchor = System.currentTimeMillis() * 1000;
+        this.file = null;
+        this.map = null;
+        this.records = 0;
+        this.lostSamples = 0;
+        this.compression = false;
+        this.writer = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
+            Thread thread;
+            thread = new Thread(r, "MFC-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer.scheduleWithFixedDelay(this::drain, DRAIN_PERIOD, DRAIN_PERIOD,
+                TimeUnit.MILLISECONDS);
+        
+    }
+    
+    public RunRecorder(File directory) {
+        
+        this(directory, DEFAULT_FILE_SIZE);
+        
+    }
+    
+    /**
+     * Начинает запись измерений РРГ, полученных после вызова метода
+     * @param mfc РРГ
+     */
+    public void add(MFC mfc) {
+        
+        this.sources.add(new Source(mfc, this.directory));
+        
+    }
+    
+    /**
+     * Прекращает запись измерений РРГ
+     * @param mfc РРГ
+     */
+    public void remove(final MFC mfc) {
+        
+        try {
+            this.writer.execute(() -> {
+                for (Source source : this.sources) {
+                    if (source.mfc == mfc) {
+                        this.sources.remove(source);
+                        source.rollups.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // the recording is already closed
+        }
+        
+    }
+    
+    /**
+     * Включает сжатие закрытых файлов записи в архивные файлы {@link BlockFile}.
+     * После сжатия файл записи удаляется
+     * @param compression true - сжимать закрытые файлы
+     */
+    public void setCompression(boolean compression) {
+        
+        this.compression = compression;
+        
+    }
+    
+    /**
+     * @return количество записанных измерений во всех файлах
+     */
+    public long getRecordCount() {
+        
+        return this.records;
+        
+    }
+    
+    /**
+     * @return количество измерений, вытесненных из истории РРГ до записи
+     */
+    public long getLostSamples() {
+        
+        return this.lostSamples;
+        
+    }
+    
+    /**
+     * Записывает оставшиеся измерения, сбрасывает их на диск и закрывает файл
+     * @throws IOException если запись не удалось завершить
+     */
+    public void close() throws IOException {
+        
+        Future<?> last;
+        
+        try {
+            last = this.writer.submit(() -> {
+                drain();
+                finish();
+                for (Source source : this.sources) {
+                    source.rollups.close();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            return;
+        }
+        this.writer.shutdown();
+        try {
+            last.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the recording", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Unable to close the recording", ex.getCause());
+        }
+        
+    }
+    
+    /**
+     * Переносит новые измерения из истории всех РРГ в файл. Выполняется в
+     * потоке записи
+     */
+    private void drain() {
+        
+        int n;
+        
+        try {
+            for (Source source : this.sources) {
+                do {
+                    n = source.history.read(source.cursor, this.times, this.flows,
+                            this.setpoints, this.statuses);
+                    if (n < 0) {
+                        n = skipLost(source);
+                    } else {
+                        write(source, n);
+                    }
+                } while (n == BATCH);
+            }
+            if (this.map != null && this.count != this.flushed
+                    && System.currentTimeMillis() - this.lastFlush >= FLUSH_PERIOD) {
+                flush();
+            }
+        } catch (IOException ex) {
+            log.severe("Unable to record flow samples: " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            log.severe("Recording failed: " + ex);
+        }
+        
+    }
+    
+    private int skipLost(Source source) {
+        
+        long first;
+        
+        first = source.history.getFirstAvailable();
+        this.lostSamples = this.lostSamples + (first - source.cursor);
+        log.warning(source.mfc.getSerialNum() + ": " + (first - source.cursor)
+                + " samples were lost before recording");
+        source.cursor = first;
+        
+        return BATCH;
+        
+    }
+    
+    private void write(Source source, int n) throws IOException {
+        
+        int pos;
+        long time;
+        
+        for (int i = 0; i < n; i++) {
+            if (this.map == null || this.count == this.capacity) {
+                rollOver();
+            }
+            pos = (int) RunFormat.offset(this.count);
+            time = toEpochMicros(this.times[i]);
+            this.map.putLong(pos + RunFormat.TIME, time);
+            this.map.putInt(pos + RunFormat.SERIAL, source.serial);
+            this.map.putFloat(pos + RunFormat.FLOW, this.flows[i]);
+            this.map.putFloat(pos + RunFormat.SETPOINT, this.setpoints[i]);
+            this.map.put(pos + RunFormat.STATUS, (byte) this.statuses[i]);
+            this.map.put(pos + RunFormat.STATUS_KNOWN, (byte) (this.statuses[i] < 0 ? 0 : 1));
+            this.count++;
+            this.records++;
+            source.cursor++;
+            source.rollups.add(time, this.flows[i], this.setpoints[i]);
+            this.stretchMin = Math.min(this.stretchMin, time);
+            this.stretchMax = Math.max(this.stretchMax, time);
+            if (this.count % RunFormat.INDEX_STRIDE == 0) {
+                putIndexEntry();
+            }
+        }
+        
+    }
+    
+    /**
+     * Записывает в индекс интервал времени текущей группы записей. Неполная
+     * группа записывается при каждом сбросе на диск
+     */
+    private void putIndexEntry() {
+        
+        int pos;
+        
+        pos = (int) (this.indexOffset + (RunFormat.entries(this.count) - 1) * RunFormat.ENTRY_SIZE);
+        this.map.putLong(pos, this.stretchMin);
+        this.map.putLong(pos + 8, this.stretchMax);
+        if (this.count % RunFormat.INDEX_STRIDE == 0) {
+            this.stretchMin = Long.MAX_VALUE;
+            this.stretchMax = Long.MIN_VALUE;
+        }
+        
+    }
+    
+    /**
+     * Закрывает заполненный файл и создаёт новый
+     */
+    private void rollOver() throws IOException {
+        
+        File next;
+        RandomAccessFile raf;
+        long startTime;
+        
+        finish();
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + this.directory);
+        }
+        startTime = toEpochMicros(System.nanoTime());
+        next = new File(this.directory, "run-" + LocalDateTime.now().format(
+                DateTimeFormatter.ofPattern("uuuuMMdd_HHmmss_SSS")) + RunFormat.EXTENSION);
+        raf = new RandomAccessFile(next, "rw");
+        try {
+            raf.setLength(this.fileSize);
+            // the mapping stays valid after the file is closed
+            this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.fileSize);
+        } finally {
+            raf.close();
+        }
+        this.capacity = RunFormat.capacity(this.fileSize);
+        this.indexOffset = RunFormat.indexOffset(this.capacity);
+        RunFormat.putHeader(this.map, startTime, this.capacity, this.indexOffset);
+        this.map.force();
+        this.file = next;
+        this.count = 0;
+        this.flushed = 0;
+        this.stretchMin = Long.MAX_VALUE;
+        this.stretchMax = Long.MIN_VALUE;
+        this.lastFlush = System.currentTimeMillis();
+        
+        log.info("Recording to " + next);
+        
+    }
+    
+    /**
+     * Сбрасывает записи и индекс на диск, после чего сохраняет количество
+     * записей в заголовке
+     */
+    private void flush() {
+        
+        if (this.count % RunFormat.INDEX_STRIDE != 0) {
+            putIndexEntry();
+        }
+        this.map.force();
+        this.map.putLong(RunFormat.COUNT_OFFSET, this.count);
+        this.map.force();
+        this.flushed = this.count;
+        for (Source source : this.sources) {
+            source.rollups.flush();
+        }
+        this.lastFlush = System.currentTimeMillis();
+        
+    }
+    
+    private void finish() {
+        
+        if (this.map != null) {
+            flush();
+            log.info("Recorded " + this.count + " samples to " + this.file);
+            this.map = null;
+            if (this.compression) {
+                compress(this.file);
+            }
+        }
+        
+    }
+    
+    private void compress(File run) {
+        
+        File archive;
+        
+        try {
+            archive = BlockWriter.compress(run);
+        } catch (IOException ex) {
+            log.warning("Unable to compress " + run + ": " + ex.getMessage());
+            return;
+        }
+        log.info("Compressed " + run + " to " + archive + " (" + archive.length() + " bytes)");
+        if (!run.delete()) {
+            // a mapped file cannot be deleted on Windows until the mapping is collected
+            log.info("Keeping " + run + ", it is still in use");
+        }
+        
+    }
+    
+    private long toEpochMicros(long nanoTime) {
+        
+        return this.wallAnchor + (nanoTime - this.nanoAnchor) / 1000;
+        
+    }
+    
+    /**
+     * История РРГ, номер следующего записываемого измерения и сводки РРГ
+     */
+    private static class Source {
+        
+        private final MFC mfc;
+        
+        private final FlowHistory history;
+        
+        private final int serial;
+        
+        private long cursor;
+        
+        private final Rollups rollups;
+        
+        Source(MFC mfc, File directory) {
+            
+            this.mfc = mfc;
+            this.history = mfc.getHistory();
+            this.serial = Integer.parseInt(mfc.getSerialNum());
+            this.cursor = this.history.getCount();
+            this.rollups = new Rollups(directory, this.serial);
+            
+        }
+        
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,20 @@
+package mfc.record;
+
+/**
+ * Получатель измерений, прочитанных из файлов записи опроса РРГ. Измерения
+ * передаются по одному, без создания объектов.
+ *
+ * @author Лейбо Д.
+ */
+public interface SampleSink {
+    
+    /**
+     * @param serial серийный номер РРГ
+     * @param time время измерения, мкс от 1970-01-01 UTC
+     * @param flow расход, %, или NaN при ошибке связи
+     * @param setpoint заданный расход, %, или NaN
+     * @param status байт статуса РРГ или -1, если он неизвестен
+     */
+    void sample(int serial, long time, float flow, float setpoint, int status);
+    
+}
\ No newline at end of file
@@ -0,0 +1,171 @@
+package mfc.record;
+
+/**
+ * Показатели одной ступени заданного расхода РРГ, вычисленные
+ * {@link RunAnalyzer}. Ступень - интервал записи, на котором заданный расход
+ * не менялся. Среднее, отклонение и ошибка слежения вычисляются по
+ * установившейся части ступени, а если расход не установился - по всей
+ * ступени.
+ *
+ * @author Лейбо Д.
+ */
+public class StepReport {
+    
+    private final int serial;
+    
+    private final long start;
+    
+    private final long end;
+    
+    private final double setpoint;
+    
+    private final double previousSetpoint;
+    
+    private final long samples;
+    
+    private final long missing;
+    
+    private final double mean;
+    
+    private final double std;
+    
+    private final double overshoot;
+    
+    private final long settlingTime;
+    
+    StepReport(int serial, long start, long end, double setpoint, double previousSetpoint,
+            long samples, long missing, double mean, double std, double overshoot,
+            long settlingTime) {
+        
+        this.serial = serial;
+        this.start = start;
+        this.end = end;
+        this.setpoint = setpoint;
+        this.previousSetpoint = previousSetpoint;
+        this.samples = samples;
+        this.missing = missing;
+        this.mean = mean;
+        this.std = std;
+        this.overshoot = overshoot;
+        this.settlingTime = settlingTime;
+        
+    }
+    
+    /**
+     * @return серийный номер РРГ
+     */
+    public int getSerial() {
+        
+        return this.serial;
+        
+    }
+    
+    /**
+     * @return время первого измерения ступени, мкс от 1970-01-01 UTC
+     */
+    public long getStart() {
+        
+        return this.start;
+        
+    }
+    
+    /**
+     * @return время последнего измерения ступени, мкс
+     */
+    public long getEnd() {
+        
+        return this.end;
+        
+    }
+    
+    /**
+     * @return заданный расход, %
+     */
+    public double getSetpoint() {
+        
+        return this.setpoint;
+        
+    }
+    
+    /**
+     * @return заданный расход предыдущей ступени, % или NaN, если он
+     * неизвестен
+     */
+    public double getPreviousSetpoint() {
+        
+        return this.previousSetpoint;
+        
+    }
+    
+    /**
+     * @return количество измерений ступени, включая измерения без расхода
+     */
+    public long getSamples() {
+        
+        return this.samples;
+        
+    }
+    
+    /**
+     * @return количество измерений без расхода
+     */
+    public long getMissing() {
+        
+        return this.missing;
+        
+    }
+    
+    /**
+     * @return средний расход, % или NaN, если расход не измерен
+     */
+    public double getMean() {
+        
+        return this.mean;
+        
+    }
+    
+    /**
+     * @return среднеквадратичное отклонение расхода от среднего, %
+     */
+    public double getStd() {
+        
+        return this.std;
+        
+    }
+    
+    /**
+     * @return наибольший выход расхода за заданный в направлении изменения
+     * заданного расхода, % или NaN, если предыдущая ступень неизвестна
+     */
+    public double getOvershoot() {
+        
+        return this.overshoot;
+        
+    }
+    
+    /**
+     * @return время от начала ступени до измерения, после которого расход не
+     * выходит за допуск, мкс, или -1, если расход не установился
+     */
+    public long getSettlingTime() {
+        
+        return this.settlingTime;
+        
+    }
+    
+    /**
+     * @return ошибка слежения: разность среднего и заданного расхода, %
+     */
+    public double getTrackingError() {
+        
+        return this.mean - this.setpoint;
+        
+    }
+    
+    public boolean isSettled() {
+        
+        return this.settlingTime >= 0;
+        
+    }
+    
+}
\ No newline at end of file
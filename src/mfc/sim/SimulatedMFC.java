@@ -0,0 +1,403 @@
+package mfc.sim;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import mfc.io.MemoryTransport;
+import mfc.io.Transport;
+import mfc.model.FrameCodec;
+
+/**
+ * Программная модель РРГ-12, отвечающая на команды протокола "Элточприбор-10М":
+ * установление связи (0x19), чтение статуса (0x01), чтение расхода (0x11),
+ * управление клапаном (0x20) и задание расхода (0x25). Модель подключается к
+ * {@link mfc.model.MFC} через {@link MemoryTransport} и позволяет испытывать
+ * программу без оборудования. Задержка ответа, разброс задержки, шум расхода и
+ * вероятность ошибок передачи настраиваются.
+ *
+ * @author Лейбо Д.
+ */
+public class SimulatedMFC implements MemoryTransport.Peer {
+    
+    private static final int FRAME_LENGTH = FrameCodec.FRAME_LENGTH;
+    
+    /**
+     * Биты режима клапана в байте статуса
+     */
+    private static final int VALVE_OPENED = 0x04;
+    
+    private static final int VALVE_CLOSED = 0x08;
+    
+    /**
+     * Расход в сотых долях процента при полностью открытом клапане
+     */
+    private static final int OPENED_FLOW = 10000;
+    
+    private final int serialNum;
+    
+    private final int address;
+    
+    private final Random random;
+    
+    /**
+     * Принимаемый кадр. Байты могут приходить по частям или несколькими
+     * кадрами подряд
+     */
+    private final byte[] frame;
+    
+    private int received;
+    
+    private final byte[] response;
+    
+    /**
+     * Режим клапана в битах байта статуса
+     */
+    private int valveBits;
+    
+    /**
+     * Заданный расход в сотых долях процента
+     */
+    private int setFlow;
+    
+    /**
+     * Текущий расход в процентах
+     */
+    private double flow;
+    
+    private long lastUpdate;
+    
+    /**
+     * Момент окончания передачи последнего ответа
+     */
+    private long busyUntil;
+    
+    private volatile long responseDelay;
+    
+    private volatile long jitter;
+    
+    private volatile int baudRate;
+    
+    private volatile double noise;
+    
+    private volatile double timeConstant;
+    
+    private volatile double corruptionRate;
+    
+    private volatile double dropRate;
+    
+    /**
+     * false - модель отключена от линии и не отвечает
+     */
+    private boolean powered;
+    
+    private final AtomicLong answered;
+    
+    private final AtomicLong corrupted;
+    
+    private final AtomicLong dropped;
+    
+    private static final Logger log;
+    
+    static {
+        
+        log = Logger.getLogger(SimulatedMFC.class.getName());
+        
+    }
+    
+    /**
+     * Создаёт модель с закрытым клапаном, задержкой ответа 2 мс, скоростью
+     * линии 19200 бод, без шума и ошибок
+     * @param serialNum заводской номер модели
+     * @param seed начальное значение генератора случайных чисел
+     */
+    public SimulatedMFC(int serialNum, long seed) {
+        
+        this.serialNum = serialNum & 0xFFFF;
+        this.address = 0x01;
+        this.random = new Random(seed);
+        this.frame = new byte[FRAME_LENGTH];
+        this.response = new byte[FRAME_LENGTH];
+        this.received = 0;
+        this.valveBits = VALVE_CLOSED;
+        this.setFlow = 0;
+        this.flow = 0;
+        this.lastUpdate = System.nanoTime();
+        this.busyUntil = this.lastUpdate;
+        this.responseDelay = 2000000L;
+        this.jitter = 0;
+        this.baudRate = 19200;
+        this.noise = 0;
+        this.timeConstant = 0.5;
+        this.corruptionRate = 0;
+        this.dropRate = 0;
+        this.powered = true;
+        this.answered = new AtomicLong();
+        this.corrupted = new AtomicLong();
+        this.dropped = new AtomicLong();
+        
+    }
+    
+    /**
+     * Создаёт канал связи с моделью
+     * @return закрытый канал, который необходимо открыть перед использованием
+     */
+    public Transport connect() {
+        
+        return new MemoryTransport("SIM" + this.serialNum, this);
+        
+    }
+    
+    public int getSerialNum() {
+        
+        return this.serialNum;
+        
+    }
+    
+    /**
+     * @param micros время обработки команды моделью, мкс
+     */
+    public void setResponseDelay(long micros) {
+        
+        this.responseDelay = micros * 1000L;
+        
+    }
+    
+    /**
+     * @param micros максимальное случайное увеличение задержки ответа, мкс
+     */
+    public void setJitter(long micros) {
+        
+        this.jitter = micros * 1000L;
+        
+    }
+    
+    /**
+     * @param baudRate скорость линии, определяющая время передачи ответа, или 0,
+     * чтобы не учитывать время передачи
+     */
+    public void setBaudRate(int baudRate) {
+        
+        this.baudRate = baudRate;
+        
+    }
+    
+    /**
+     * @param percent среднеквадратичный шум измеренного расхода, %
+     */
+    public void setNoise(double percent) {
+        
+        this.noise = percent;
+        
+    }
+    
+    /**
+     * @param seconds постоянная времени установления расхода, с
+     */
+    public void setTimeConstant(double seconds) {
+        
+        this.timeConstant = seconds;
+        
+    }
+    
+    /**
+     * @param probability вероятность искажения одного байта ответа
+     */
+    public void setCorruptionRate(double probability) {
+        
+        this.corruptionRate = probability;
+        
+    }
+    
+    /**
+     * @param probability вероятность того, что ответ не будет отправлен
+     */
+    public void setDropRate(double probability) {
+        
+        this.dropRate = probability;
+        
+    }
+    
+    /**
+     * Отключает модель от линии или подключает её обратно. После включения
+     * модель находится в исходном состоянии: клапан закрыт, заданный расход 0
+     * @param powered false - модель не отвечает на команды
+     */
+    public synchronized void setPowered(boolean powered) {
+        
+        if (powered && !this.powered) {
+            this.received = 0;
+            this.valveBits = VALVE_CLOSED;
+            this.setFlow = 0;
+            this.flow = 0;
+            this.lastUpdate = System.nanoTime();
+        }
+        this.powered = powered;
+        
+    }
+    
+    public long getAnsweredCount() {
+        
+        return this.answered.get();
+        
+    }
+    
+    public long getCorruptedCount() {
+        
+        return this.corrupted.get();
+        
+    }
+    
+    public long getDroppedCount() {
+        
+        return this.dropped.get();
+        
+    }
+    
+    @Override
+    public synchronized void receive(byte[] data, int off, int len, MemoryTransport line) {
+        
+        if (!this.powered) {
+            return;
+        }
+        for (int i = 0; i < len; i++) {
+            this.frame[this.received] = data[off + i];
+            this.received = this.received + 1;
+            if (this.received == FRAME_LENGTH) {
+                this.received = 0;
+                process(line);
+            }
+        }
+        
+    }
+    
+    private void process(MemoryTransport line) {
+        
+        int command;
+        long delay;
+        long now;
+        
+        if (!FrameCodec.checkSumIsOK(this.frame, 0)) {
+            log.fine("SIM" + this.serialNum + ": ignoring frame with bad check sum");
+            return;
+        }
+        
+        updateFlow();
+        command = this.frame[0] & 0xFF;
+        for (int i = 0; i < FRAME_LENGTH; i++) {
+            this.response[i] = 0;
+        }
+        this.response[0] = (byte) command;
+        this.response[7] = (byte) this.address;
+        
+        switch (command) {
+            case FrameCodec.HANDSHAKE:
+                this.response[5] = (byte) (this.serialNum >> 8);
+                this.response[6] = (byte) this.serialNum;
+                break;
+            case FrameCodec.GET_STATUS:
+                break;
+            case FrameCodec.GET_FLOW:
+                encodeFlow(this.response);
+                break;
+            case FrameCodec.SET_VALVE:
+                switch (this.frame[2]) {
+                    case 0x01:
+                        this.valveBits = VALVE_OPENED;
+                        break;
+                    case 0x02:
+                        this.valveBits = VALVE_CLOSED;
+                        break;
+                    default:
+                        this.valveBits = 0;
+                        break;
+                }
+                this.response[2] = this.frame[2];
+                break;
+            case FrameCodec.SET_FLOW:
+                this.setFlow = ((this.frame[2] & 0xFF) << 8) | (this.frame[3] & 0xFF);
+                this.response[2] = this.frame[2];
+                this.response[3] = this.frame[3];
+                break;
+            default:
+                log.fine("SIM" + this.serialNum + ": unknown command " + command);
+                return;
+        }
+        this.response[1] = (byte) this.valveBits;
+        FrameCodec.putCheckSum(this.response, 0);
+        
+        if (this.random.nextDouble() < this.dropRate) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+        if (this.random.nextDouble() < this.corruptionRate) {
+            this.response[this.random.nextInt(FRAME_LENGTH)] ^= (byte) (1 + this.random.nextInt(255));
+            this.corrupted.incrementAndGet();
+        }
+        
+        // frames received back to back are processed one after another
+        now = System.nanoTime();
+        delay = Math.max(0, this.busyUntil - now) + this.responseDelay;
+        if (this.jitter > 0) {
+            delay = delay + (long) (this.random.nextDouble() * this.jitter);
+        }
+        if (this.baudRate > 0) {
+            // 8N1: start bit, 8 data bits and stop bit per byte
+            delay = delay + FRAME_LENGTH * 10 * 1000000000L / this.baudRate;
+        }
+        this.busyUntil = now + delay;
+        line.deliver(this.response, 0, FRAME_LENGTH, delay);
+        this.answered.incrementAndGet();
+        
+    }
+    
+    /**
+     * Приближает текущий расход к целевому значению режима клапана по
+     * экспоненциальному закону
+     */
+    private void updateFlow() {
+        
+        long now;
+        double target;
+        double dt;
+        
+        now = System.nanoTime();
+        dt = (now - this.lastUpdate) / 1e9;
+        this.lastUpdate = now;
+        
+        if (this.valveBits == VALVE_CLOSED) {
+            target = 0;
+        } else if (this.valveBits == VALVE_OPENED) {
+            target = OPENED_FLOW / 100.0;
+        } else {
+            target = this.setFlow / 100.0;
+        }
+        if (this.timeConstant <= 0) {
+            this.flow = target;
+        } else {
+            this.flow = target + (this.flow - target) * Math.exp(-dt / this.timeConstant);
+        }
+        
+    }
+    
+    private void encodeFlow(byte[] dst) {
+        
+        double measured;
+        int magnitude;
+        
+        measured = this.flow;
+        if (this.noise > 0) {
+            measured = measured + this.random.nextGaussian() * this.noise;
+        }
+        magnitude = (int) Math.round(Math.abs(measured) * 100.0);
+        magnitude = Math.min(magnitude, 0x7FFF);
+        if (measured < 0 && magnitude != 0) {
+            magnitude = magnitude | 0x8000;
+        }
+        dst[2] = (byte) (magnitude >> 8);
+        dst[3] = (byte) magnitude;
+        dst[4] = (byte) (this.setFlow >> 8);
+        dst[5] = (byte) this.setFlow;
+        
+    }
+    
+}
\ No newline at end of file